@@ -0,0 +1,72 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lox.Interpreter;
+import lox.Lox;
+import lox.Parser;
+import lox.Resolver;
+import lox.Scanner;
+import lox.Stmt;
+
+/*
+ * a fresh Interpreter (so fresh globals) per run of the program, the
+ * tree is parsed and resolved once, like a script that gets run again
+ * and again; print output is thrown away
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class InterpreterBenchmark {
+    @Param({"fib", "objects", "closures", Workloads.GENERATED})
+    public String workload;
+
+    private List<Stmt> statements;
+    private PrintStream stdout;
+
+    @Setup
+    public void setup() throws IOException {
+        statements = new Parser(new Scanner(Workloads.load(workload)).scanTokens()).parse();
+        if (!Lox.hadError)
+            new Resolver().resolve(statements);
+        if (Lox.hadError)
+            throw new IllegalStateException("workload '" + workload + "' does not compile");
+
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown(){
+        System.setOut(stdout);
+        if (Lox.hadRuntimeError)
+            throw new IllegalStateException("workload '" + workload + "' failed at run time");
+    }
+
+    @Benchmark
+    public Interpreter interpret(){
+        Interpreter interpreter = new Interpreter();
+        interpreter.interpret(statements);
+        return interpreter;
+    }
+}
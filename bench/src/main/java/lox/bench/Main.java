@@ -0,0 +1,31 @@
+package lox.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * java -jar bench/target/benchmarks.jar [jmh options]
+ *
+ * same as JMH's own main, except the GC profiler is always on, so every
+ * result comes with its allocation rate (gc.alloc.rate.norm is bytes
+ * allocated per operation)
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams()
+            || cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()){
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        Options options = new OptionsBuilder()
+            .parent(cmdOptions)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,48 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lox.Lox;
+import lox.Parser;
+import lox.Scanner;
+import lox.Stmt;
+import lox.Token;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ParserBenchmark {
+    @Param({"fib", "objects", "closures", Workloads.GENERATED})
+    public String workload;
+
+    private List<Token> tokens;
+
+    @Setup
+    public void setup() throws IOException {
+        tokens = new Scanner(Workloads.load(workload)).scanTokens();
+        if (Lox.hadError)
+            throw new IllegalStateException("workload '" + workload + "' does not scan");
+    }
+
+    @Benchmark
+    public List<Stmt> parse(){
+        return new Parser(tokens).parse();
+    }
+}
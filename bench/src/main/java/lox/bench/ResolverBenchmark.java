@@ -0,0 +1,54 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lox.Lox;
+import lox.Parser;
+import lox.Resolver;
+import lox.Scanner;
+import lox.Stmt;
+
+/*
+ * resolving only writes the same depths and slots into the tree again,
+ * so every invocation can reuse the one parsed program
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResolverBenchmark {
+    @Param({"fib", "objects", "closures", Workloads.GENERATED})
+    public String workload;
+
+    private List<Stmt> statements;
+
+    @Setup
+    public void setup() throws IOException {
+        statements = new Parser(new Scanner(Workloads.load(workload)).scanTokens()).parse();
+        if (Lox.hadError)
+            throw new IllegalStateException("workload '" + workload + "' does not parse");
+    }
+
+    @Benchmark
+    public Resolver resolve(){
+        Resolver resolver = new Resolver();
+        resolver.resolve(statements);
+        return resolver;
+    }
+}
@@ -0,0 +1,63 @@
+package lox.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Lox sources the benchmarks run on
+ *
+ * "generated" is a synthetic program, big enough that the front end
+ * (scanner, parser, resolver) has something to chew on, the others are
+ * the checked-in scripts under resources/workloads/
+ */
+final class Workloads {
+    static final String GENERATED = "generated";
+    private static final int GENERATED_UNITS = 500;
+
+    private Workloads(){}
+
+    static String load(String name) throws IOException {
+        if (name.equals(GENERATED))
+            return generate(GENERATED_UNITS);
+
+        try (InputStream in = Workloads.class.getResourceAsStream("/workloads/" + name + ".lox")){
+            if (in == null)
+                throw new IllegalArgumentException("no workload named '" + name + "'");
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /*
+     * every unit declares a function and a class and calls both once,
+     * so the program also runs (and does not take long to)
+     */
+    static String generate(int units){
+        StringBuilder src = new StringBuilder();
+        for (int i = 0; i < units; i++){
+            src.append("fn f").append(i).append("(a, b) {\n")
+               .append("    var x = a * ").append(i).append(" + b;\n")
+               .append("    if (x > ").append(i).append(") {\n")
+               .append("        x = x - ").append(i).append(";\n")
+               .append("    } else {\n")
+               .append("        x = x + 1;\n")
+               .append("    }\n")
+               .append("    var s = \"unit ").append(i).append("\";\n")
+               .append("    var n = 0;\n")
+               .append("    while (n < 3) { n = n + 1; x = x + n; }\n")
+               .append("    return x;\n")
+               .append("}\n\n");
+
+            src.append("class C").append(i).append(" {\n")
+               .append("    init(v) { this.v = v; }\n")
+               .append("    get() { return this.v + ").append(i).append("; }\n")
+               .append("}\n\n");
+        }
+
+        src.append("var total = 0;\n");
+        for (int i = 0; i < units; i++)
+            src.append("total = total + f").append(i).append("(1, 2) + C").append(i).append("(3).get();\n");
+        src.append("print total;\n");
+        return src.toString();
+    }
+}
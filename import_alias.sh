@@ -1,7 +1,7 @@
 #! /bin/bash
 
 #FOR RUNNING THE PROGRAM (kind of line python3 or python)
-alias jlox="java -cp lox/bin lox.Lox"
+alias jlox="./jlox"
 
 #THIS RUNS THE GenerateAst code and saves the corresponding files in src/lox
 alias jgen="java -cp lox/bin tool.GenerateAst ./lox/src/lox/"
@@ -0,0 +1,113 @@
+package lox;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/*
+ * jlox --build-archive: dumps an application class-data-sharing archive.
+ *
+ * Most of a short script's wall clock is the JVM loading, verifying and
+ * linking our classes (Interpreter, Parser, the Expr/Stmt nodes...).
+ * A CDS archive has them already parsed and verified, the JVM maps it in
+ * at startup. The archive is dumped by a second JVM started with
+ * -XX:ArchiveClassesAtExit which runs the training program below through
+ * every path a normal run takes (scanner, parser, resolver, the AST cache
+ * both ways, interpreter), whatever it loaded ends up archived.
+ *
+ * CDS only archives classes that come from jars, so this has to be run
+ * from lox/jlox.jar (make archive does both), and the archive is only
+ * good for that exact jar: rebuilding the jar throws it away and the
+ * jlox launcher ignores an archive older than the jar.
+ */
+class ArchiveBuilder {
+    private static final String TRAINING = String.join("\n",
+        "var a = 1; var b = \"two\"; var c = nil; var d = true and !false or nil;",
+        "print a + 2 * (3 - 4) / 5; print b + \"three\"; print -a; print c == nil;",
+        "print a < 2; print a <= 2; print a > 2; print a >= 2; print a != 2; print b == \"two\";",
+        "var n = 0; n++; ++n; n--; --n;",
+        "for (var i = 0; i < 3; i = i + 1) { if (i == 1) print i; else { var j = i; print j; } }",
+        "var w = 0; while (w < 3) w = w + 1;",
+        "fn zero() { return 0; }",
+        "fn one(x) { return x; }",
+        "fn two(x, y) { return x + y; }",
+        "fn three(x, y, z) { return x + y + z; }",
+        "fn four(x, y, z, u) { return x + y + z + u; }",
+        "fn count(k, acc) { if (k == 0) return acc; return count(k - 1, acc + 1); }",
+        "print zero() + one(1) + two(1, 2) + three(1, 2, 3) + four(1, 2, 3, 4) + count(100, 0);",
+        "fn counter() { var c = 0; fn inc() { c = c + 1; return c; } return inc; }",
+        "var inc = counter(); inc(); print inc();",
+        "fn fib(k) { if (k < 2) return k; return fib(k - 1) + fib(k - 2); }",
+        "print fib(15);",
+        "class Base {",
+        "  init(x) { this.x = x; }",
+        "  get() { return this.x; }",
+        "  add(y) { return this.x + y; }",
+        "  tail(k) { if (k == 0) return this.x; return this.tail(k - 1); }",
+        "}",
+        "class Derived < Base {",
+        "  init(x) { super.init(x); }",
+        "  get() { return super.get() * 2; }",
+        "}",
+        "var o = Derived(21); o.y = 1; o.y = o.y + 1;",
+        "var m = o.add;",
+        "print o.get() + o.add(1) + m(2) + o.tail(10) + o.y;",
+        "print o; print Base; print fib;",
+        "");
+
+    static int build(String archive) throws IOException {
+        String classPath = System.getProperty("java.class.path");
+        if (classPath.contains(File.pathSeparator) || !classPath.endsWith(".jar")){
+            System.err.println("--build-archive has to be run from the jlox jar (make jar), "
+                               + "CDS can't archive classes from " + classPath);
+            return 64;
+        }
+        Path jar = Paths.get(classPath).toAbsolutePath();
+        Path out = archive != null
+                   ? Paths.get(archive).toAbsolutePath()
+                   : jar.resolveSibling(jar.getFileName().toString().replaceFirst("\\.jar$", ".jsa"));
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process dump = new ProcessBuilder(java, "-XX:ArchiveClassesAtExit=" + out,
+                                          "-cp", jar.toString(), ArchiveBuilder.class.getName())
+                       .redirectOutput(Redirect.DISCARD)
+                       .redirectError(Redirect.INHERIT)
+                       .start();
+        int status;
+        try {
+            status = dump.waitFor();
+        } catch (InterruptedException e){
+            dump.destroy();
+            Thread.currentThread().interrupt();
+            return 70;
+        }
+        if (status != 0 || !Files.isRegularFile(out)){
+            System.err.println("dumping the archive failed (exit " + status + ")");
+            return 70;
+        }
+        System.out.println("Wrote " + out);
+        return 0;
+    }
+
+    /* the training run, in the JVM that dumps the archive */
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("jlox-archive");
+        try {
+            Path script = dir.resolve("training.lox");
+            Files.writeString(script, TRAINING);
+            System.setProperty("lox.cache.dir", dir.resolve("cache").toString());
+
+            Lox.main(new String[]{ script.toString() });           // AST cache miss
+            Lox.main(new String[]{ script.toString() });           // and hit
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)){
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,931 @@
+package lox;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/*
+ * On-disk cache of resolved programs, like python's .pyc files.
+ *
+ * A script that scanned, parsed and resolved without errors gets its
+ * optimized Stmt tree written out (how names resolve, slots, frame sizes,
+ * captured locals, upvalues, tail call flags and inlined calls included)
+ * under a name derived from its key: the SHA-256 of the interpreter's
+ * build stamp followed by the source.
+ * Next time the same bytes are run by the same build the tree is read
+ * back from a memory mapping of that file and the whole front end is
+ * skipped.
+ *
+ * The build stamp is made of checksums of the interpreter's own classes
+ * (the jar it was loaded from, or every class file of a lox/bin style
+ * directory), so any change to the Resolver, the Optimizer, the Inliner
+ * or the node layout gets new keys without anyone having to remember to
+ * bump something. Entries of older builds are left behind, like .pyc
+ * files of an older python. When the classes can't be read there is no
+ * stamp and no cache.
+ *
+ * The runtime caches hanging off the nodes (BinaryNode, shapes, methods)
+ * are not written, a loaded tree starts out as cold as a parsed one.
+ *
+ * Layout (ints are unsigned LEB128 varints, the lines of tokens and
+ * statements are zigzag deltas from the previous line written):
+ *   magic, FORMAT_VERSION (4 bytes each), key (32 bytes)
+ *   string count, strings (byte length + UTF-8)
+ *   statement count, statements
+ * A call's inlinedFrom is the index of that function among the top level
+ * statements (it is always a global function, see Inliner).
+ *
+ * A file with the wrong magic, version or key is just a miss, the file
+ * gets rewritten after parsing. One that doesn't decode (truncated,
+ * corrupt) is deleted and reported on stderr.
+ */
+public class AstCache {
+    private static final int MAGIC = 0x4C4F5843; // "LOXC"
+    // bump on any change to this format, changes to the passes and the
+    // nodes are covered by the build stamp
+    static final int FORMAT_VERSION = 7;
+
+    // node tags, 0 stands for a missing (null) node
+    private static final byte NONE = 0;
+    private static final byte BINARY = 1, GROUPING = 2, LITERAL = 3, UNARY = 4,
+                              VARIABLE = 5, ASSIGNMENT = 6, LOGICAL = 7, POST_OP = 8,
+                              PRE_OP = 9, CALL = 10, INVOKE = 11, GET = 12, SET = 13,
+                              THIS = 14, SUPER = 15, INDEX = 16, SET_INDEX = 17;
+    private static final byte EXPRESSION = 1, PRINT = 2, VAR = 3, BLOCK = 4, IF = 5,
+                              WHILE = 6, FUNCTION = 7, RETURN = 8, CLASS = 9;
+    // literal values
+    private static final byte NIL = 0, FALSE = 1, TRUE = 2, NUMBER = 3, STRING = 4;
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    private static boolean hasLiteral(TokenType type){
+        return type == TokenType.NUMBER || type == TokenType.STRING;
+    }
+
+    private final Path dir;
+    private final byte[] stamp;
+
+    private AstCache(Path dir, byte[] stamp){
+        this.dir = dir;
+        this.stamp = stamp;
+    }
+
+    /*
+     * the cache directory is -Dlox.cache.dir, else $LOX_CACHE_DIR,
+     * else ~/.cache/jlox. Setting either to "" turns caching off, so
+     * does a build without a stamp.
+     */
+    public static AstCache open(){
+        String dir = System.getProperty("lox.cache.dir", System.getenv("LOX_CACHE_DIR"));
+        if (dir != null && dir.isEmpty())
+            return null;
+        byte[] stamp = buildStamp();
+        if (stamp == null)
+            return null;
+        if (dir == null)
+            return new AstCache(Paths.get(System.getProperty("user.home"), ".cache", "jlox"), stamp);
+        return new AstCache(Paths.get(dir), stamp);
+    }
+
+    private static MessageDigest sha256(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e){
+            throw new AssertionError("every JVM ships SHA-256", e);
+        }
+    }
+
+    /*
+     * checksums of the classes this interpreter runs from, its jar or
+     * every class file (path and contents, in path order) under its class
+     * directory. null if they can't be found or read.
+     *
+     * CRC32 and CRC32C rather than SHA-256: the JVM runs them natively
+     * even before anything is compiled, SHA-256 over a 170k jar costs a
+     * cold start 25ms, more than the cache saves on a small script. Two
+     * 32 bit checksums plus the lengths leave no practical chance of two
+     * builds sharing a stamp.
+     */
+    private static byte[] buildStamp(){
+        try {
+            CodeSource code = AstCache.class.getProtectionDomain().getCodeSource();
+            if (code == null || code.getLocation() == null)
+                return null;
+            Path location = Paths.get(code.getLocation().toURI());
+            ByteBuffer stamp;
+            if (Files.isDirectory(location)){
+                List<Path> classes = new ArrayList<>();
+                classFiles(location, classes);
+                Collections.sort(classes);
+                stamp = ByteBuffer.allocate(classes.size() * 16);
+                for (Path file : classes){
+                    byte[] name = location.relativize(file).toString().getBytes(StandardCharsets.UTF_8);
+                    stamp.putInt(checksum(new CRC32(), name));
+                    checksum(stamp, Files.readAllBytes(file));
+                }
+            } else {
+                stamp = ByteBuffer.allocate(12);
+                checksum(stamp, Files.readAllBytes(location));
+            }
+            return stamp.array();
+        } catch (IOException | URISyntaxException | IllegalArgumentException
+                 | FileSystemNotFoundException | SecurityException e){
+            return null;
+        }
+    }
+
+    private static void checksum(ByteBuffer stamp, byte[] bytes){
+        stamp.putInt(bytes.length);
+        stamp.putInt(checksum(new CRC32(), bytes));
+        stamp.putInt(checksum(new CRC32C(), bytes));
+    }
+
+    private static int checksum(Checksum checksum, byte[] bytes){
+        checksum.update(bytes, 0, bytes.length);
+        return (int)checksum.getValue();
+    }
+
+    // plain loops rather than Files.walk, streams cost startup time
+    private static void classFiles(Path dir, List<Path> out) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)){
+            for (Path entry : entries){
+                if (Files.isDirectory(entry))
+                    classFiles(entry, out);
+                else if (entry.getFileName().toString().endsWith(".class"))
+                    out.add(entry);
+            }
+        }
+    }
+
+    /* the cache key of this source for this build, SHA-256 of stamp and source */
+    public byte[] hash(ByteBuffer source){
+        MessageDigest digest = sha256();
+        digest.update(stamp);
+        digest.update(source.duplicate());
+        return digest.digest();
+    }
+
+    private Path fileFor(byte[] hash){
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash)
+            name.append(String.format("%02x", b));
+        return dir.resolve(name.append(".loxc").toString());
+    }
+
+    /* the cached program for the source with this hash, null on a miss */
+    public List<Stmt> load(byte[] hash){
+        Path file = fileFor(hash);
+        if (!Files.isRegularFile(file)) return null;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 8 + hash.length || in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION)
+                return null;
+            for (byte b : hash)
+                if (in.get() != b) return null;
+            return new Reader(in).program();
+        } catch (IOException e){
+            return null;
+        } catch (BufferUnderflowException | IllegalArgumentException
+                 | IndexOutOfBoundsException | ClassCastException e){
+            // a bad entry would miss the same way on every run if it
+            // can't be rewritten, so it goes
+            System.err.println("jlox: dropping corrupt cache entry " + file + " (" + e + ")");
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored){}
+            return null;
+        }
+    }
+
+    /*
+     * best effort, a cache that can't be written (read only home,
+     * disk full) just means the next run parses again. The file is
+     * written next to its final name and moved into place so a
+     * concurrent run never maps half of it.
+     */
+    public void store(byte[] hash, List<Stmt> program){
+        Path file = fileFor(hash);
+        Path tmp = null;
+        try {
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+            Files.write(tmp, new Writer().program(hash, program));
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e){
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e){
+            try {
+                if (tmp != null) Files.deleteIfExists(tmp);
+            } catch (IOException ignored){}
+        }
+    }
+
+    private static final class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Out body = new Out();
+        private int line = 0;
+        private final Map<Stmt, Integer> topLevel = new IdentityHashMap<>();
+
+        byte[] program(byte[] hash, List<Stmt> program){
+            for (int i = 0; i < program.size(); ++i)
+                topLevel.put(program.get(i), i);
+            statements(program);
+
+            Out out = new Out();
+            out.int32(MAGIC);
+            out.int32(FORMAT_VERSION);
+            out.bytes(hash, hash.length);
+            out.varint(strings.size());
+            for (String s : strings){
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                out.varint(utf8.length);
+                out.bytes(utf8, utf8.length);
+            }
+            out.bytes(body.buf, body.size);
+            return Arrays.copyOf(out.buf, out.size);
+        }
+
+        private void string(String s){
+            Integer index = stringIndex.get(s);
+            if (index == null){
+                index = strings.size();
+                strings.add(s);
+                stringIndex.put(s, index);
+            }
+            body.varint(index);
+        }
+
+        private void token(Token token){
+            body.write(token.type.ordinal());
+            string(token.lexeme);
+            if (hasLiteral(token.type))
+                value(token.literal);
+            line(token.line);
+        }
+
+        private void line(int line){
+            int delta = line - this.line;
+            body.varint((delta << 1) ^ (delta >> 31));
+            this.line = line;
+        }
+
+        private void value(Object value){
+            if (value == null){
+                body.write(NIL);
+            } else if (value instanceof Boolean){
+                body.write((Boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double){
+                body.write(NUMBER);
+                body.int64(Double.doubleToRawLongBits((Double)value));
+            } else {
+                body.write(STRING);
+                string((String)value);
+            }
+        }
+
+        // depth is -1 for globals, slot is -1 until declared
+        private void resolved(int depth, int slot){
+            body.varint(depth + 1);
+            body.varint(slot + 1);
+        }
+
+        // null is written as 0, otherwise the length + 1
+        private void ints(int[] values){
+            if (values == null){
+                body.varint(0);
+                return;
+            }
+            body.varint(values.length + 1);
+            for (int value : values)
+                body.varint(value);
+        }
+
+        private void expr(Expr expr){
+            if (expr == null)
+                body.write(NONE);
+            else
+                expr.accept(this);
+        }
+
+        private void exprs(List<Expr> exprs){
+            body.varint(exprs.size());
+            for (Expr expr : exprs)
+                expr(expr);
+        }
+
+        private void stmt(Stmt stmt){
+            if (stmt == null){
+                body.write(NONE);
+            } else {
+                stmt.accept(this);
+                line(stmt.line);
+            }
+        }
+
+        private void statements(List<? extends Stmt> stmts){
+            body.varint(stmts.size());
+            for (Stmt stmt : stmts)
+                stmt(stmt);
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr){
+            body.write(BINARY);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr){
+            body.write(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr){
+            body.write(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr){
+            body.write(UNARY);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr){
+            body.write(VARIABLE);
+            token(expr.name);
+            resolved(expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignmentExpr(Expr.Assignment expr){
+            body.write(ASSIGNMENT);
+            token(expr.identifier);
+            expr(expr.expression);
+            resolved(expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr){
+            body.write(LOGICAL);
+            expr(expr.left);
+            token(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitPostOpExpr(Expr.PostOp expr){
+            body.write(POST_OP);
+            token(expr.identifier);
+            token(expr.operator);
+            resolved(expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitPreOpExpr(Expr.PreOp expr){
+            body.write(PRE_OP);
+            token(expr.identifier);
+            token(expr.operator);
+            resolved(expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr){
+            body.write(CALL);
+            expr(expr.callee);
+            token(expr.paren);
+            exprs(expr.arguments);
+            body.write(expr.tail ? 1 : 0);
+            if (expr.inlined != null){
+                body.varint(topLevel.get(expr.inlinedFrom) + 1);
+                expr(expr.inlined);
+            } else {
+                body.varint(0);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitInvokeExpr(Expr.Invoke expr){
+            body.write(INVOKE);
+            expr(expr.object);
+            token(expr.name);
+            token(expr.paren);
+            exprs(expr.arguments);
+            body.write(expr.tail ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr){
+            body.write(GET);
+            expr(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr){
+            body.write(SET);
+            expr(expr.object);
+            token(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitIndexExpr(Expr.Index expr){
+            body.write(INDEX);
+            expr(expr.object);
+            token(expr.bracket);
+            expr(expr.index);
+            return null;
+        }
+
+        @Override
+        public Void visitSetIndexExpr(Expr.SetIndex expr){
+            body.write(SET_INDEX);
+            expr(expr.object);
+            token(expr.bracket);
+            expr(expr.index);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr){
+            body.write(THIS);
+            token(expr.keyword);
+            resolved(expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr){
+            body.write(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            resolved(expr.depth, expr.slot);
+            resolved(expr.thisDepth, expr.thisSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt){
+            body.write(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt){
+            body.write(PRINT);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt){
+            body.write(VAR);
+            token(stmt.identifier);
+            expr(stmt.expression);
+            body.varint(stmt.slot + 1);
+            body.write(stmt.captured ? 1 : 0);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt){
+            body.write(BLOCK);
+            statements(stmt.statements);
+            body.varint(stmt.elided ? 0 : stmt.locals + 1);
+            ints(stmt.resets);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt){
+            body.write(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt){
+            body.write(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt){
+            body.write(FUNCTION);
+            token(stmt.name);
+            body.varint(stmt.params.size());
+            for (Token param : stmt.params)
+                token(param);
+            statements(stmt.body);
+            body.varint(stmt.slot + 1);
+            body.varint(stmt.locals);
+            body.write(stmt.captured ? 1 : 0);
+            ints(stmt.upvalues);
+            ints(stmt.captures);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt){
+            body.write(RETURN);
+            token(stmt.keyword);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt){
+            body.write(CLASS);
+            token(stmt.name);
+            expr(stmt.superclass);
+            statements(stmt.methods);
+            body.varint(stmt.slot + 1);
+            body.write(stmt.captured ? 1 : 0);
+            body.varint(stmt.superSlot);
+            return null;
+        }
+    }
+
+    /* a growable byte array, ByteArrayOutputStream without the locking */
+    private static final class Out {
+        byte[] buf = new byte[4096];
+        int size;
+
+        private void ensure(int extra){
+            if (size + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(size + extra, buf.length * 2));
+        }
+
+        void write(int b){
+            ensure(1);
+            buf[size++] = (byte)b;
+        }
+
+        void bytes(byte[] b, int len){
+            ensure(len);
+            System.arraycopy(b, 0, buf, size, len);
+            size += len;
+        }
+
+        void varint(int value){
+            while ((value & ~0x7f) != 0){
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void int32(int value){
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void int64(long value){
+            int32((int)(value >>> 32));
+            int32((int)value);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer in;
+        private final String[] strings;
+        private final Map<String, Symbol> symbols = new HashMap<>();
+        private int line = 0;
+        // calls whose inlinedFrom is still to be filled in, and the index it is at
+        private final List<Expr.Call> inlined = new ArrayList<>();
+        private final List<Integer> inlinedFrom = new ArrayList<>();
+
+        Reader(ByteBuffer in){
+            this.in = in;
+            strings = new String[varint()];
+            byte[] scratch = new byte[64];
+            for (int i = 0; i < strings.length; ++i){
+                int len = varint();
+                if (len > scratch.length)
+                    scratch = new byte[Math.max(len, scratch.length * 2)];
+                in.get(scratch, 0, len);
+                strings[i] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+            }
+        }
+
+        List<Stmt> program(){
+            List<Stmt> program = statements();
+            if (in.hasRemaining())
+                throw new IllegalArgumentException("trailing bytes");
+            for (int i = 0; i < inlined.size(); ++i)
+                inlined.get(i).inlinedFrom = (Stmt.Function)program.get(inlinedFrom.get(i));
+            return program;
+        }
+
+        private int varint(){
+            int value = 0;
+            for (int shift = 0; ; shift += 7){
+                byte b = in.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        private String string(){
+            return strings[varint()];
+        }
+
+        private Token token(){
+            TokenType type = tokenTypes[in.get()];
+            String lexeme = string();
+            Object literal = hasLiteral(type) ? value() : null;
+            int line = line();
+            if (type == TokenType.IDENTIFIER)
+                return new Token(type, lexeme, literal, line,
+                                 symbols.computeIfAbsent(lexeme, SymbolTable::intern));
+            return new Token(type, lexeme, literal, line);
+        }
+
+        private int line(){
+            int delta = varint();
+            return line += (delta >>> 1) ^ -(delta & 1);
+        }
+
+        private Object value(){
+            switch (in.get()){
+                case NIL:    return null;
+                case FALSE:  return false;
+                case TRUE:   return true;
+                case NUMBER: return Double.longBitsToDouble(in.getLong());
+                case STRING: return string();
+                default:     throw new IllegalArgumentException("bad value tag");
+            }
+        }
+
+        private int[] ints(){
+            int count = varint() - 1;
+            if (count == -1)
+                return null;
+            int[] values = new int[count];
+            for (int i = 0; i < count; ++i)
+                values[i] = varint();
+            return values;
+        }
+
+        private List<Expr> exprs(){
+            int count = varint();
+            List<Expr> exprs = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+                exprs.add(expr());
+            return exprs;
+        }
+
+        private List<Stmt> statements(){
+            int count = varint();
+            List<Stmt> stmts = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+                stmts.add(stmt());
+            return stmts;
+        }
+
+        private Expr expr(){
+            switch (in.get()){
+                case NONE:
+                    return null;
+                case BINARY: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Binary(left, operator, expr());
+                }
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case UNARY: {
+                    Token operator = token();
+                    return new Expr.Unary(operator, expr());
+                }
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = varint() - 1;
+                    expr.slot = varint() - 1;
+                    return expr;
+                }
+                case ASSIGNMENT: {
+                    Token identifier = token();
+                    Expr.Assignment expr = new Expr.Assignment(identifier, expr());
+                    expr.depth = varint() - 1;
+                    expr.slot = varint() - 1;
+                    return expr;
+                }
+                case LOGICAL: {
+                    Expr left = expr();
+                    Token operator = token();
+                    return new Expr.Logical(left, operator, expr());
+                }
+                case POST_OP: {
+                    Token identifier = token();
+                    Expr.PostOp expr = new Expr.PostOp(identifier, token());
+                    expr.depth = varint() - 1;
+                    expr.slot = varint() - 1;
+                    return expr;
+                }
+                case PRE_OP: {
+                    Token identifier = token();
+                    Expr.PreOp expr = new Expr.PreOp(identifier, token());
+                    expr.depth = varint() - 1;
+                    expr.slot = varint() - 1;
+                    return expr;
+                }
+                case CALL: {
+                    Expr callee = expr();
+                    Token paren = token();
+                    Expr.Call expr = new Expr.Call(callee, paren, exprs());
+                    expr.tail = in.get() != 0;
+                    int from = varint() - 1;
+                    if (from != -1){
+                        // the declaration may not have been read yet, see program()
+                        expr.inlined = expr();
+                        inlined.add(expr);
+                        inlinedFrom.add(from);
+                    }
+                    return expr;
+                }
+                case INVOKE: {
+                    Expr object = expr();
+                    Token name = token();
+                    Token paren = token();
+                    Expr.Invoke expr = new Expr.Invoke(object, name, paren, exprs());
+                    expr.tail = in.get() != 0;
+                    return expr;
+                }
+                case GET: {
+                    Expr object = expr();
+                    return new Expr.Get(object, token());
+                }
+                case SET: {
+                    Expr object = expr();
+                    Token name = token();
+                    return new Expr.Set(object, name, expr());
+                }
+                case INDEX: {
+                    Expr object = expr();
+                    Token bracket = token();
+                    return new Expr.Index(object, bracket, expr());
+                }
+                case SET_INDEX: {
+                    Expr object = expr();
+                    Token bracket = token();
+                    Expr index = expr();
+                    return new Expr.SetIndex(object, bracket, index, expr());
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.depth = varint() - 1;
+                    expr.slot = varint() - 1;
+                    return expr;
+                }
+                case SUPER: {
+                    Token keyword = token();
+                    Expr.Super expr = new Expr.Super(keyword, token());
+                    expr.depth = varint() - 1;
+                    expr.slot = varint() - 1;
+                    expr.thisDepth = varint() - 1;
+                    expr.thisSlot = varint() - 1;
+                    return expr;
+                }
+                default:
+                    throw new IllegalArgumentException("bad expression tag");
+            }
+        }
+
+        private Stmt stmt(){
+            Stmt stmt = stmtNode();
+            if (stmt != null)
+                stmt.line = line();
+            return stmt;
+        }
+
+        private Stmt stmtNode(){
+            switch (in.get()){
+                case NONE:
+                    return null;
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case PRINT:
+                    return new Stmt.Print(expr());
+                case VAR: {
+                    Token identifier = token();
+                    Stmt.Var stmt = new Stmt.Var(identifier, expr());
+                    stmt.slot = varint() - 1;
+                    stmt.captured = in.get() != 0;
+                    return stmt;
+                }
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    int locals = varint() - 1;
+                    stmt.elided = locals == -1;
+                    stmt.locals = Math.max(locals, 0);
+                    stmt.resets = ints();
+                    return stmt;
+                }
+                case IF: {
+                    Expr condition = expr();
+                    Stmt thenBranch = stmt();
+                    return new Stmt.If(condition, thenBranch, stmt());
+                }
+                case WHILE: {
+                    Expr condition = expr();
+                    return new Stmt.While(condition, stmt());
+                }
+                case FUNCTION:
+                    return function();
+                case RETURN: {
+                    Token keyword = token();
+                    return new Stmt.Return(keyword, expr());
+                }
+                case CLASS: {
+                    Token name = token();
+                    Expr.Variable superclass = (Expr.Variable)expr();
+                    int count = varint();
+                    List<Stmt.Function> methods = new ArrayList<>(count);
+                    for (int i = 0; i < count; ++i)
+                        methods.add((Stmt.Function)stmt());
+                    Stmt.Class stmt = new Stmt.Class(name, superclass, methods);
+                    stmt.slot = varint() - 1;
+                    stmt.captured = in.get() != 0;
+                    stmt.superSlot = varint();
+                    return stmt;
+                }
+                default:
+                    throw new IllegalArgumentException("bad statement tag");
+            }
+        }
+
+        // the FUNCTION tag has already been read
+        private Stmt.Function function(){
+            Token name = token();
+            int count = varint();
+            List<Token> params = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i)
+                params.add(token());
+            Stmt.Function stmt = new Stmt.Function(name, params, statements());
+            stmt.slot = varint() - 1;
+            stmt.locals = varint();
+            stmt.captured = in.get() != 0;
+            stmt.upvalues = ints();
+            stmt.captures = ints();
+            return stmt;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package lox;
 import lox.Expr.Assignment;
 import lox.Expr.Call;
 import lox.Expr.Get;
+import lox.Expr.Invoke;
 import lox.Expr.Logical;
 import lox.Expr.PostOp;
 import lox.Expr.PreOp;
@@ -85,6 +86,12 @@ class AstPrinter implements Expr.Visitor<String> {
         throw new UnsupportedOperationException("Unimplemented method 'visitCallExpr'");
     }
 
+    @Override
+    public String visitInvokeExpr(Invoke expr) {
+        // TODO Auto-generated method stub
+        throw new UnsupportedOperationException("Unimplemented method 'visitInvokeExpr'");
+    }
+
     @Override
     public String visitGetExpr(Get expr) {
         // TODO Auto-generated method stub
@@ -97,6 +104,18 @@ class AstPrinter implements Expr.Visitor<String> {
         throw new UnsupportedOperationException("Unimplemented method 'visitSetExpr'");
     }
 
+    @Override
+    public String visitIndexExpr(Expr.Index expr) {
+        // TODO Auto-generated method stub
+        throw new UnsupportedOperationException("Unimplemented method 'visitIndexExpr'");
+    }
+
+    @Override
+    public String visitSetIndexExpr(Expr.SetIndex expr) {
+        // TODO Auto-generated method stub
+        throw new UnsupportedOperationException("Unimplemented method 'visitSetIndexExpr'");
+    }
+
     @Override
     public String visitThisExpr(This expr) {
         // TODO Auto-generated method stub
@@ -0,0 +1,235 @@
+package lox;
+
+/*
+ * Self-specializing implementations for Expr.Binary
+ *
+ * Every Binary starts out with UNINITIALIZED, the first time it runs it
+ * looks at the operand types it actually got and rewrites itself
+ * (expr.node) into a node for that operator and those types, so later
+ * executions skip both the switch on the operator and the type dispatch.
+ *
+ * The specialized nodes guard on their operand types, if a guard fails
+ * the site is rewritten to GENERIC for good (the old switch), it never
+ * flips back and forth between specializations.
+ */
+abstract class BinaryNode {
+    abstract Object execute(Expr.Binary expr, Object left, Object right);
+
+    static final BinaryNode UNINITIALIZED = new BinaryNode() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            BinaryNode node = specialize(expr.operator.type, left, right);
+            expr.node = node;
+            return node.execute(expr, left, right);
+        }
+    };
+
+    static final BinaryNode GENERIC = new BinaryNode() {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            return generic(expr.operator, left, right);
+        }
+    };
+
+    private static BinaryNode specialize(TokenType op, Object left, Object right){
+        if (left instanceof Double && right instanceof Double){
+            switch (op){
+                case PLUS:          return new NumberAdd();
+                case MINUS:         return new NumberSubtract();
+                case STAR:          return new NumberMultiply();
+                case SLASH:         return new NumberDivide();
+                case GREATER:       return new NumberGreater();
+                case GREATER_EQUAL: return new NumberGreaterEqual();
+                case LESS:          return new NumberLess();
+                case LESS_EQUAL:    return new NumberLessEqual();
+                case EQUAL_EQUAL:   return new NumberEqual(false);
+                case EXCLAM_EQUAL:  return new NumberEqual(true);
+                default:            break;
+            }
+        } else if (LoxString.isString(left) && LoxString.isString(right)){
+            switch (op){
+                case PLUS:          return new StringConcat();
+                case EQUAL_EQUAL:   return new StringEqual(false);
+                case EXCLAM_EQUAL:  return new StringEqual(true);
+                default:            break;
+            }
+        }
+        return GENERIC;
+    }
+
+    /*
+     * a guard failed: stop specializing this site
+     */
+    static Object despecialize(Expr.Binary expr, Object left, Object right){
+        expr.node = GENERIC;
+        return generic(expr.operator, left, right);
+    }
+
+    static Object generic(Token operator, Object left, Object right){
+        switch (operator.type) {
+            case PLUS:
+                if (left instanceof Double && right instanceof Double)
+                    return ((double)left + (double)right);
+                else if (LoxString.isString(left) && LoxString.isString(right))
+                    return LoxString.concat(left, right);
+                throw new RuntimeError(operator, "Operands must be number or string");
+            case MINUS:
+                checkNumberOperands(operator, left, right);
+                return ((double)left - (double)right);
+            case STAR:
+                checkNumberOperands(operator, left, right);
+                return ((double)left * (double)right);
+            case SLASH:
+                checkNumberOperands(operator, left, right);
+                return ((double)left / (double)right);
+            case GREATER:
+                checkNumberOperands(operator, left, right);
+                return ((double)left > (double)right);
+            case GREATER_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return ((double)left >= (double)right);
+            case LESS:
+                checkNumberOperands(operator, left, right);
+                return ((double)left < (double)right);
+            case LESS_EQUAL:
+                checkNumberOperands(operator, left, right);
+                return ((double)left <= (double)right);
+            case EXCLAM_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            default:
+                break;
+        }
+        return null;
+    }
+
+    static boolean isEqual(Object left, Object right){
+        if (left == null && right == null) return true;
+        if (left == null) return false;
+        // a String is never equal to a LoxString by its own equals()
+        if (right instanceof LoxString) return right.equals(left);
+        return left.equals(right);
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right){
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be of type number");
+    }
+
+    private static final class NumberAdd extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left + (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class NumberSubtract extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left - (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class NumberMultiply extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left * (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class NumberDivide extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left / (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class NumberGreater extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left > (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class NumberGreaterEqual extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left >= (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class NumberLess extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left < (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class NumberLessEqual extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return (double)left <= (double)right;
+            return despecialize(expr, left, right);
+        }
+    }
+
+    /*
+     * same semantics as Double.equals() (NaN == NaN, 0.0 != -0.0)
+     * so a specialized site answers exactly like the generic one
+     */
+    private static final class NumberEqual extends BinaryNode {
+        private final boolean negate;
+
+        NumberEqual(boolean negate){
+            this.negate = negate;
+        }
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (left instanceof Double && right instanceof Double)
+                return negate != (Double.doubleToLongBits((double)left)
+                                  == Double.doubleToLongBits((double)right));
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class StringConcat extends BinaryNode {
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (LoxString.isString(left) && LoxString.isString(right))
+                return LoxString.concat(left, right);
+            return despecialize(expr, left, right);
+        }
+    }
+
+    private static final class StringEqual extends BinaryNode {
+        private final boolean negate;
+
+        StringEqual(boolean negate){
+            this.negate = negate;
+        }
+
+        @Override
+        Object execute(Expr.Binary expr, Object left, Object right){
+            if (LoxString.isString(left) && LoxString.isString(right))
+                return negate != isEqual(left, right);
+            return despecialize(expr, left, right);
+        }
+    }
+}
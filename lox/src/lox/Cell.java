@@ -0,0 +1,15 @@
+package lox;
+
+/*
+ * A captured local (clox's upvalue): the frame slot of the variable and
+ * every closure using it point at the same Cell, so an assignment from
+ * either side is seen by the other, and the closures keep only this
+ * alive once the call that declared it has returned.
+ */
+final class Cell {
+    Object value;
+
+    Cell(Object value){
+        this.value = value;
+    }
+}
@@ -0,0 +1,20 @@
+package lox;
+
+/*
+ * How a statement finished executing
+ *
+ * Statements hand this back to whoever executed them instead of
+ * throwing: a block stops at the first statement that did not complete
+ * NORMAL and passes it on, until it reaches something that handles it
+ * (LoxFunction for RETURN, the value itself is kept in the Interpreter).
+ * break / continue would be more constants here, handled by the loops.
+ *
+ * TAIL_CALL is a return whose value is a call still to be made, the
+ * Interpreter holds the callee and its arguments until LoxFunction
+ * runs it in place of the returning function.
+ */
+enum Completion {
+    NORMAL,
+    RETURN,
+    TAIL_CALL
+}
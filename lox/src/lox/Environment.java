@@ -3,68 +3,50 @@ package lox;
 import java.util.HashMap;
 import java.util.Map;
 
+/*
+ * Globals are still looked up by name since they can be defined
+ * (and redefined) at any point, e.g. from the REPL. The names are
+ * interned Symbols, so that is a precomputed hash and an identity compare.
+ *
+ * Locals don't live in here. Every call gets one plain array, its
+ * frame, holding all the locals of the function (the Resolver hands
+ * out a slot for each and counts how many it needs). A local that
+ * some closure captures is a Cell in its slot, shared with the closures,
+ * which only keep the cells they use (see LoxFunction) instead of
+ * every environment around them.
+ */
 public class Environment {
-    private final Map<String, Object> variables = new HashMap<>();
-   
-    final Environment parentEnv;
+    private final Map<Symbol, Object> variables = new HashMap<>();
 
-    public void define(String name, Object value){
-        variables.put(name, value);
-    }
+    private static final Object[] EMPTY_FRAME = new Object[0];
 
-    public Environment(){
-        parentEnv = null;
+    /* a frame for a call (or a top level block, see Resolver) */
+    static Object[] frame(int size){
+        if (LoxEvents.enabled)
+            LoxEvents.environmentAllocation(size);
+        return size == 0 ? EMPTY_FRAME : new Object[size];
     }
 
-    public Environment(Environment parentEnv){
-        this.parentEnv = parentEnv;
+    public void define(Symbol name, Object value){
+        variables.put(name, value);
     }
 
-    public Environment deepCopy(){
-        Environment pEnv = null;
-        if (parentEnv != null)
-            pEnv = parentEnv.deepCopy();
-        Environment newEnv = new Environment(pEnv);
-        for (Map.Entry<String, Object> entry : variables.entrySet()){
-            newEnv.variables.put(entry.getKey(), entry.getValue());
-        }
-        return newEnv;
+    public void define(String name, Object value){
+        define(SymbolTable.intern(name), value);
     }
 
     public Object get(Token name){
-        if (variables.containsKey(name.lexeme))
-            return variables.get(name.lexeme);
-        
-        if (parentEnv != null) 
-            return parentEnv.get(name);
+        Object value = variables.get(name.symbol);
+        // nil is stored as null, so only then does it take a second look
+        if (value != null || variables.containsKey(name.symbol))
+            return value;
 
         throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
     }
 
-    public Object getAt(Integer dist, String name){
-        return ancestor(dist).variables.get(name);
-    }
-
-    private Environment ancestor(Integer dist){
-        Environment env = this;
-        for (int i =0; i < dist; ++i)
-            env = env.parentEnv;
-        return env;
-
-    }
-
-    void assignAt(Integer dist, Token name, Object value){
-        ancestor(dist).variables.put(name.lexeme, value);
-    }
-
     void assign(Token name, Object value){
-        if (variables.containsKey(name.lexeme)){
-            variables.put(name.lexeme, value);
-            return;
-        }
-
-        if (parentEnv != null){
-            parentEnv.assign(name, value);
+        if (variables.containsKey(name.symbol)){
+            variables.put(name.symbol, value);
             return;
         }
 
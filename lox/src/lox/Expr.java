@@ -15,13 +15,16 @@ public abstract class Expr{
 		R visitPostOpExpr(PostOp expr);
 		R visitPreOpExpr(PreOp expr);
 		R visitCallExpr(Call expr);
+		R visitInvokeExpr(Invoke expr);
 		R visitGetExpr(Get expr);
 		R visitSetExpr(Set expr);
+		R visitIndexExpr(Index expr);
+		R visitSetIndexExpr(SetIndex expr);
 		R visitThisExpr(This expr);
 		R visitSuperExpr(Super expr);
 	}
 
-	abstract <R> R accept(Visitor<R> visitor);
+	public abstract <R> R accept(Visitor<R> visitor);
 
 	static public class Binary extends Expr{
 		public Binary(Expr left,Token operator,Expr right){
@@ -31,13 +34,16 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitBinaryExpr(this);
 		}
 
-		 final Expr left;
-		 final Token operator;
-		 final Expr right;
+		public final Expr left;
+		public final Token operator;
+		public final Expr right;
+
+		// not part of the syntax, filled in later on
+		public BinaryNode node = BinaryNode.UNINITIALIZED;
 	}
 
 	static public class Grouping extends Expr{
@@ -46,11 +52,11 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitGroupingExpr(this);
 		}
 
-		 final Expr expression;
+		public final Expr expression;
 	}
 
 	static public class Literal extends Expr{
@@ -59,11 +65,11 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitLiteralExpr(this);
 		}
 
-		 final Object value;
+		public final Object value;
 	}
 
 	static public class Unary extends Expr{
@@ -73,12 +79,12 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitUnaryExpr(this);
 		}
 
-		 final Token operator;
-		 final Expr right;
+		public final Token operator;
+		public final Expr right;
 	}
 
 	static public class Variable extends Expr{
@@ -87,11 +93,15 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitVariableExpr(this);
 		}
 
-		 final Token name;
+		public final Token name;
+
+		// not part of the syntax, filled in later on
+		public int depth = -1;
+		public int slot;
 	}
 
 	static public class Assignment extends Expr{
@@ -101,12 +111,16 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitAssignmentExpr(this);
 		}
 
-		 final Token identifier;
-		 final Expr expression;
+		public final Token identifier;
+		public final Expr expression;
+
+		// not part of the syntax, filled in later on
+		public int depth = -1;
+		public int slot;
 	}
 
 	static public class Logical extends Expr{
@@ -117,13 +131,13 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitLogicalExpr(this);
 		}
 
-		 final Expr left;
-		 final Token operator;
-		 final Expr right;
+		public final Expr left;
+		public final Token operator;
+		public final Expr right;
 	}
 
 	static public class PostOp extends Expr{
@@ -133,12 +147,16 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitPostOpExpr(this);
 		}
 
-		 final Token identifier;
-		 final Token operator;
+		public final Token identifier;
+		public final Token operator;
+
+		// not part of the syntax, filled in later on
+		public int depth = -1;
+		public int slot;
 	}
 
 	static public class PreOp extends Expr{
@@ -148,12 +166,16 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitPreOpExpr(this);
 		}
 
-		 final Token identifier;
-		 final Token operator;
+		public final Token identifier;
+		public final Token operator;
+
+		// not part of the syntax, filled in later on
+		public int depth = -1;
+		public int slot;
 	}
 
 	static public class Call extends Expr{
@@ -164,13 +186,43 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitCallExpr(this);
 		}
 
-		 final Expr callee;
-		 final Token paren;
-		 final List<Expr> arguments;
+		public final Expr callee;
+		public final Token paren;
+		public final List<Expr> arguments;
+
+		// not part of the syntax, filled in later on
+		public boolean tail;
+		public Expr inlined;
+		public Stmt.Function inlinedFrom;
+	}
+
+	static public class Invoke extends Expr{
+		public Invoke(Expr object,Token name,Token paren,List<Expr> arguments){
+			this.object = object;
+			this.name = name;
+			this.paren = paren;
+			this.arguments = arguments;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor){
+			return visitor.visitInvokeExpr(this);
+		}
+
+		public final Expr object;
+		public final Token name;
+		public final Token paren;
+		public final List<Expr> arguments;
+
+		// not part of the syntax, filled in later on
+		public Shape shape;
+		public int index;
+		public LoxFunction method;
+		public boolean tail;
 	}
 
 	static public class Get extends Expr{
@@ -180,12 +232,17 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitGetExpr(this);
 		}
 
-		 final Expr object;
-		 final Token name;
+		public final Expr object;
+		public final Token name;
+
+		// not part of the syntax, filled in later on
+		public Shape shape;
+		public int index;
+		public LoxFunction method;
 	}
 
 	static public class Set extends Expr{
@@ -196,13 +253,54 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitSetExpr(this);
 		}
 
-		 final Expr object;
-		 final Token name;
-		 final Expr value;
+		public final Expr object;
+		public final Token name;
+		public final Expr value;
+
+		// not part of the syntax, filled in later on
+		public Shape shape;
+		public Shape next;
+		public int index;
+	}
+
+	static public class Index extends Expr{
+		public Index(Expr object,Token bracket,Expr index){
+			this.object = object;
+			this.bracket = bracket;
+			this.index = index;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor){
+			return visitor.visitIndexExpr(this);
+		}
+
+		public final Expr object;
+		public final Token bracket;
+		public final Expr index;
+	}
+
+	static public class SetIndex extends Expr{
+		public SetIndex(Expr object,Token bracket,Expr index,Expr value){
+			this.object = object;
+			this.bracket = bracket;
+			this.index = index;
+			this.value = value;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor){
+			return visitor.visitSetIndexExpr(this);
+		}
+
+		public final Expr object;
+		public final Token bracket;
+		public final Expr index;
+		public final Expr value;
 	}
 
 	static public class This extends Expr{
@@ -211,11 +309,15 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitThisExpr(this);
 		}
 
-		 final Token keyword;
+		public final Token keyword;
+
+		// not part of the syntax, filled in later on
+		public int depth = -1;
+		public int slot;
 	}
 
 	static public class Super extends Expr{
@@ -225,12 +327,18 @@ public abstract class Expr{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitSuperExpr(this);
 		}
 
-		 final Token keyword;
-		 final Token method;
+		public final Token keyword;
+		public final Token method;
+
+		// not part of the syntax, filled in later on
+		public int depth = -1;
+		public int slot;
+		public int thisDepth = -1;
+		public int thisSlot;
 	}
 
 }
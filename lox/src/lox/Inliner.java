@@ -0,0 +1,608 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Inlines small global functions at their call sites, for the tree walker
+ *
+ * A candidate is a function declared at the top level of the program
+ * whose body is a single 'return <expr>;', where the expression only
+ * reads its parameters and globals, does arithmetic, logic, property
+ * gets and calls (no assignments). It is dropped if its name is declared
+ * more than once, assigned to, or used as anything but a callee in this
+ * program, if it ends up calling itself, or if it is bigger than MAX_SIZE
+ * nodes. Calls inside candidate bodies are inlined first, so helpers
+ * built on helpers flatten out.
+ *
+ * A call site f(args) keeps everything it had and gets
+ * Call.inlined, the body with the arguments put in place of the
+ * parameters, and Call.inlinedFrom, the declaration. The interpreter
+ * still evaluates the callee and only takes the inlined expression if
+ * that is a function of this very declaration (a global function closes
+ * over the globals only, so that is enough), otherwise it calls whatever
+ * the name holds now. That covers a redefinition from the REPL, a call
+ * running before the declaration did, and --profile (which wants to see
+ * every call).
+ *
+ * Putting the arguments in is only done when it can't be told apart from
+ * evaluating them all up front: literals go anywhere; locals (and 'this')
+ * go anywhere as long as no code can run before they are read, i.e. all
+ * arguments are such and no call comes first; anything else has to be
+ * read exactly once, unconditionally, in argument order, before the body
+ * does anything that could fail or run code. A call that doesn't pass is
+ * left as it is.
+ */
+class Inliner implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_SIZE = 32;
+
+    // the order things happen in when a body runs, see events()
+    private static final int EFFECT = -1, CALL = -2;
+
+    private static final class Candidate {
+        final Stmt.Function declaration;
+        int declarations = 1;
+        boolean escapes = false;
+        // NEW, IN_PROGRESS or DONE, see prepare()
+        int state = NEW;
+        // once DONE: the expression to put in, null if it can't be inlined
+        Expr body;
+        int[] events;
+
+        Candidate(Stmt.Function declaration){
+            this.declaration = declaration;
+        }
+    }
+
+    private static final int NEW = 0, IN_PROGRESS = 1, DONE = 2;
+
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    // global declarations, other than a candidate's own, by name
+    private final Map<String, Integer> declared = new HashMap<>();
+    private final List<Expr.Call> sites = new ArrayList<>();
+    private boolean inCandidate = false;
+
+    void inline(List<Stmt> program){
+        for (Stmt stmt : program){
+            if (!(stmt instanceof Stmt.Function)) continue;
+            Stmt.Function function = (Stmt.Function)stmt;
+            if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)
+                || ((Stmt.Return)function.body.get(0)).expression == null)
+                continue;
+            // a second declaration of the name is counted by scan()
+            candidates.putIfAbsent(function.name.lexeme, new Candidate(function));
+        }
+        if (candidates.isEmpty()) return;
+
+        scan(program);
+        for (Candidate candidate : candidates.values())
+            candidate.declarations += declared.getOrDefault(candidate.declaration.name.lexeme, 0);
+        for (Expr.Call call : sites)
+            inline(call, false);
+    }
+
+    private void inline(Expr.Call call, boolean inCandidate){
+        if (call.inlined != null || !(call.callee instanceof Expr.Variable)) return;
+        Expr.Variable callee = (Expr.Variable)call.callee;
+        if (callee.depth != Resolver.GLOBAL) return;
+        Candidate candidate = candidates.get(callee.name.lexeme);
+        if (candidate == null) return;
+
+        Expr body = prepare(candidate);
+        if (body == null || call.arguments.size() != candidate.declaration.params.size()
+            || !substitutable(candidate.events, call.arguments, inCandidate))
+            return;
+        call.inlined = substitute(body, call.arguments);
+        call.inlinedFrom = candidate.declaration;
+    }
+
+    /* the candidate's body with the calls in it inlined, null if it isn't inlinable */
+    private Expr prepare(Candidate candidate){
+        if (candidate.state == DONE) return candidate.body;
+        // it calls itself, possibly through others
+        if (candidate.state == IN_PROGRESS) return null;
+        candidate.state = IN_PROGRESS;
+
+        Expr body = null;
+        List<Integer> events = new ArrayList<>();
+        if (candidate.declarations == 1 && !candidate.escapes){
+            body = ((Stmt.Return)candidate.declaration.body.get(0)).expression;
+            if (!events(body, events, false)){
+                body = null;
+            } else {
+                inlineCalls(body);
+                if (size(body) > MAX_SIZE || calls(body, candidate.declaration.name.lexeme))
+                    body = null;
+            }
+        }
+
+        candidate.body = body;
+        candidate.events = events.stream().mapToInt(Integer::intValue).toArray();
+        candidate.state = DONE;
+        return body;
+    }
+
+    /*
+     * what running expr does, in order: (param << 1 | conditional) for a
+     * parameter read, EFFECT for anything that can fail and CALL for
+     * anything that can run code. A call is seen the way it runs when it
+     * is not inlined, an inlined call reads the parameters of this body
+     * the same way (they are not literals, see substitutable()).
+     * False if expr has something a candidate can't have.
+     */
+    private static boolean events(Expr expr, List<Integer> out, boolean conditional){
+        if (expr instanceof Expr.Literal)
+            return true;
+        if (expr instanceof Expr.Variable){
+            Expr.Variable variable = (Expr.Variable)expr;
+            if (variable.depth == Resolver.LOCAL)
+                out.add(variable.slot << 1 | (conditional ? 1 : 0));
+            else if (variable.depth == Resolver.GLOBAL)
+                out.add(EFFECT);
+            else
+                return false;
+            return true;
+        }
+        if (expr instanceof Expr.Binary){
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (!events(binary.left, out, conditional) || !events(binary.right, out, conditional))
+                return false;
+            out.add(EFFECT);
+            return true;
+        }
+        if (expr instanceof Expr.Unary){
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (!events(unary.right, out, conditional))
+                return false;
+            if (unary.operator.type == TokenType.MINUS)
+                out.add(EFFECT);
+            return true;
+        }
+        if (expr instanceof Expr.Logical){
+            Expr.Logical logical = (Expr.Logical)expr;
+            return events(logical.left, out, conditional) && events(logical.right, out, true);
+        }
+        if (expr instanceof Expr.Get){
+            if (!events(((Expr.Get)expr).object, out, conditional))
+                return false;
+            out.add(EFFECT);
+            return true;
+        }
+        if (expr instanceof Expr.Index){
+            Expr.Index index = (Expr.Index)expr;
+            if (!events(index.object, out, conditional) || !events(index.index, out, conditional))
+                return false;
+            out.add(EFFECT);
+            return true;
+        }
+        if (expr instanceof Expr.Call){
+            Expr.Call call = (Expr.Call)expr;
+            if (!events(call.callee, out, conditional))
+                return false;
+            for (Expr argument : call.arguments)
+                if (!events(argument, out, conditional))
+                    return false;
+            out.add(CALL);
+            return true;
+        }
+        if (expr instanceof Expr.Invoke){
+            Expr.Invoke invoke = (Expr.Invoke)expr;
+            if (!events(invoke.object, out, conditional))
+                return false;
+            for (Expr argument : invoke.arguments)
+                if (!events(argument, out, conditional))
+                    return false;
+            out.add(CALL);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean substitutable(int[] events, List<Expr> arguments, boolean inCandidate){
+        // in a candidate's body the arguments may be its parameters, which
+        // are only fixed at the outer call site, so nothing is stable there
+        boolean stable = !inCandidate;
+        for (Expr argument : arguments){
+            if (!(argument instanceof Expr.Literal || argument instanceof Expr.This
+                  || argument instanceof Expr.Variable && ((Expr.Variable)argument).depth != Resolver.GLOBAL))
+                stable = false;
+        }
+
+        int[] reads = new int[arguments.size()];
+        int last = -1;
+        boolean effect = false, called = false;
+        for (int event : events){
+            if (event == EFFECT){
+                effect = true;
+                continue;
+            }
+            if (event == CALL){
+                effect = called = true;
+                continue;
+            }
+            int param = event >> 1;
+            if (arguments.get(param) instanceof Expr.Literal)
+                continue;
+            if (stable){
+                if (called) return false;
+                continue;
+            }
+            if ((event & 1) != 0 || effect || param <= last)
+                return false;
+            last = param;
+            reads[param]++;
+        }
+        if (stable) return true;
+        for (int i = 0; i < reads.length; ++i){
+            if (!(arguments.get(i) instanceof Expr.Literal) && reads[i] != 1)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * a copy of a candidate's body with the arguments in place of the
+     * parameters. Argument nodes are shared with the call, only one of
+     * the two ever runs. The copies get their own runtime caches.
+     */
+    private static Expr substitute(Expr expr, List<Expr> arguments){
+        if (expr instanceof Expr.Variable){
+            Expr.Variable variable = (Expr.Variable)expr;
+            return variable.depth == Resolver.LOCAL ? arguments.get(variable.slot) : variable;
+        }
+        if (expr instanceof Expr.Binary){
+            Expr.Binary binary = (Expr.Binary)expr;
+            return new Expr.Binary(substitute(binary.left, arguments), binary.operator,
+                                   substitute(binary.right, arguments));
+        }
+        if (expr instanceof Expr.Unary){
+            Expr.Unary unary = (Expr.Unary)expr;
+            return new Expr.Unary(unary.operator, substitute(unary.right, arguments));
+        }
+        if (expr instanceof Expr.Logical){
+            Expr.Logical logical = (Expr.Logical)expr;
+            return new Expr.Logical(substitute(logical.left, arguments), logical.operator,
+                                    substitute(logical.right, arguments));
+        }
+        if (expr instanceof Expr.Get){
+            Expr.Get get = (Expr.Get)expr;
+            return new Expr.Get(substitute(get.object, arguments), get.name);
+        }
+        if (expr instanceof Expr.Index){
+            Expr.Index index = (Expr.Index)expr;
+            return new Expr.Index(substitute(index.object, arguments), index.bracket,
+                                  substitute(index.index, arguments));
+        }
+        if (expr instanceof Expr.Call){
+            Expr.Call call = (Expr.Call)expr;
+            Expr.Call copy = new Expr.Call(substitute(call.callee, arguments), call.paren,
+                                           substitute(call.arguments, arguments));
+            if (call.inlined != null){
+                copy.inlined = substitute(call.inlined, arguments);
+                copy.inlinedFrom = call.inlinedFrom;
+            }
+            return copy;
+        }
+        if (expr instanceof Expr.Invoke){
+            Expr.Invoke invoke = (Expr.Invoke)expr;
+            return new Expr.Invoke(substitute(invoke.object, arguments), invoke.name,
+                                   invoke.paren, substitute(invoke.arguments, arguments));
+        }
+        // a literal
+        return expr;
+    }
+
+    private static List<Expr> substitute(List<Expr> exprs, List<Expr> arguments){
+        List<Expr> copies = new ArrayList<>(exprs.size());
+        for (Expr expr : exprs)
+            copies.add(substitute(expr, arguments));
+        return copies;
+    }
+
+    /* inlines the calls in a candidate's body, events() has checked its shape */
+    private void inlineCalls(Expr expr){
+        if (expr instanceof Expr.Binary){
+            inlineCalls(((Expr.Binary)expr).left);
+            inlineCalls(((Expr.Binary)expr).right);
+        } else if (expr instanceof Expr.Unary){
+            inlineCalls(((Expr.Unary)expr).right);
+        } else if (expr instanceof Expr.Logical){
+            inlineCalls(((Expr.Logical)expr).left);
+            inlineCalls(((Expr.Logical)expr).right);
+        } else if (expr instanceof Expr.Get){
+            inlineCalls(((Expr.Get)expr).object);
+        } else if (expr instanceof Expr.Index){
+            inlineCalls(((Expr.Index)expr).object);
+            inlineCalls(((Expr.Index)expr).index);
+        } else if (expr instanceof Expr.Call){
+            Expr.Call call = (Expr.Call)expr;
+            inlineCalls(call.callee);
+            for (Expr argument : call.arguments)
+                inlineCalls(argument);
+            inline(call, true);
+        } else if (expr instanceof Expr.Invoke){
+            inlineCalls(((Expr.Invoke)expr).object);
+            for (Expr argument : ((Expr.Invoke)expr).arguments)
+                inlineCalls(argument);
+        }
+    }
+
+    /* nodes in a candidate's body, counting what its inlined calls evaluate to */
+    private static int size(Expr expr){
+        if (expr instanceof Expr.Binary)
+            return 1 + size(((Expr.Binary)expr).left) + size(((Expr.Binary)expr).right);
+        if (expr instanceof Expr.Unary)
+            return 1 + size(((Expr.Unary)expr).right);
+        if (expr instanceof Expr.Logical)
+            return 1 + size(((Expr.Logical)expr).left) + size(((Expr.Logical)expr).right);
+        if (expr instanceof Expr.Get)
+            return 1 + size(((Expr.Get)expr).object);
+        if (expr instanceof Expr.Index)
+            return 1 + size(((Expr.Index)expr).object) + size(((Expr.Index)expr).index);
+        if (expr instanceof Expr.Call){
+            Expr.Call call = (Expr.Call)expr;
+            if (call.inlined != null)
+                return 1 + size(call.inlined);
+            int size = 1 + size(call.callee);
+            for (Expr argument : call.arguments)
+                size += size(argument);
+            return size;
+        }
+        if (expr instanceof Expr.Invoke){
+            int size = 1 + size(((Expr.Invoke)expr).object);
+            for (Expr argument : ((Expr.Invoke)expr).arguments)
+                size += size(argument);
+            return size;
+        }
+        return 1;
+    }
+
+    /* whether expr calls the global 'name', inlined calls included */
+    private static boolean calls(Expr expr, String name){
+        if (expr instanceof Expr.Binary)
+            return calls(((Expr.Binary)expr).left, name) || calls(((Expr.Binary)expr).right, name);
+        if (expr instanceof Expr.Unary)
+            return calls(((Expr.Unary)expr).right, name);
+        if (expr instanceof Expr.Logical)
+            return calls(((Expr.Logical)expr).left, name) || calls(((Expr.Logical)expr).right, name);
+        if (expr instanceof Expr.Get)
+            return calls(((Expr.Get)expr).object, name);
+        if (expr instanceof Expr.Index)
+            return calls(((Expr.Index)expr).object, name) || calls(((Expr.Index)expr).index, name);
+        if (expr instanceof Expr.Call){
+            Expr.Call call = (Expr.Call)expr;
+            if (call.callee instanceof Expr.Variable
+                && ((Expr.Variable)call.callee).depth == Resolver.GLOBAL
+                && ((Expr.Variable)call.callee).name.lexeme.equals(name))
+                return true;
+            if (call.inlined != null && calls(call.inlined, name))
+                return true;
+            for (Expr argument : call.arguments)
+                if (calls(argument, name)) return true;
+            return calls(call.callee, name);
+        }
+        if (expr instanceof Expr.Invoke){
+            for (Expr argument : ((Expr.Invoke)expr).arguments)
+                if (calls(argument, name)) return true;
+            return calls(((Expr.Invoke)expr).object, name);
+        }
+        return false;
+    }
+
+    /*
+     * the scan over the whole program: how every global name is used,
+     * and the call sites outside of candidates
+     */
+
+    private void scan(List<Stmt> stmts){
+        for (Stmt stmt : stmts)
+            stmt.accept(this);
+    }
+
+    private void scan(Expr expr){
+        if (expr != null)
+            expr.accept(this);
+    }
+
+    private void declared(Token name, Stmt declaration){
+        Candidate candidate = candidates.get(name.lexeme);
+        if (candidate == null || candidate.declaration != declaration)
+            declared.merge(name.lexeme, 1, Integer::sum);
+    }
+
+    private void escapes(Token name){
+        Candidate candidate = candidates.get(name.lexeme);
+        if (candidate != null)
+            candidate.escapes = true;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr){
+        scan(expr.left);
+        scan(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr){
+        scan(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr){
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr){
+        scan(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr){
+        if (expr.depth == Resolver.GLOBAL)
+            escapes(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignmentExpr(Expr.Assignment expr){
+        if (expr.depth == Resolver.GLOBAL)
+            escapes(expr.identifier);
+        scan(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr){
+        scan(expr.left);
+        scan(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitPostOpExpr(Expr.PostOp expr){
+        if (expr.depth == Resolver.GLOBAL)
+            escapes(expr.identifier);
+        return null;
+    }
+
+    @Override
+    public Void visitPreOpExpr(Expr.PreOp expr){
+        if (expr.depth == Resolver.GLOBAL)
+            escapes(expr.identifier);
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr){
+        // a global callee is the one use that doesn't count as escaping
+        if (!(expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).depth == Resolver.GLOBAL))
+            scan(expr.callee);
+        else if (!inCandidate)
+            sites.add(expr);
+        for (Expr argument : expr.arguments)
+            scan(argument);
+        return null;
+    }
+
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr){
+        scan(expr.object);
+        for (Expr argument : expr.arguments)
+            scan(argument);
+        return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr){
+        scan(expr.object);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr){
+        scan(expr.object);
+        scan(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitIndexExpr(Expr.Index expr){
+        scan(expr.object);
+        scan(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr){
+        scan(expr.object);
+        scan(expr.index);
+        scan(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr){
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr){
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt){
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt){
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt){
+        if (stmt.slot == -1)
+            declared(stmt.identifier, stmt);
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt){
+        scan(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt){
+        scan(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null)
+            stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt){
+        scan(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt){
+        if (stmt.slot == -1)
+            declared(stmt.name, stmt);
+        Candidate candidate = candidates.get(stmt.name.lexeme);
+        boolean enclosing = inCandidate;
+        inCandidate = candidate != null && candidate.declaration == stmt;
+        scan(stmt.body);
+        inCandidate = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt){
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt){
+        if (stmt.slot == -1)
+            declared(stmt.name, stmt);
+        scan(stmt.superclass);
+        for (Stmt.Function method : stmt.methods)
+            scan(method.body);
+        return null;
+    }
+}
@@ -30,13 +30,25 @@ import lox.Expr.Variable;
  * and hence a new local scope
  */
 public class Interpreter implements Expr.Visitor<Object>,
-                                    Stmt.Visitor<Void>
+                                    Stmt.Visitor<Completion>
     {
 
     // private static HashMap<Object, Object> variables = new HashMap<>();
     final Environment globals = new Environment();
-    private Environment env = globals;
-    private final HashMap<Expr, Integer> locals = new HashMap<>();
+    // the frame of the running call (or top level block) and the cells
+    // its closure captured, both null at the top level (see Resolver)
+    private Object[] frame = null;
+    private Cell[] upvalues = null;
+    // value of the last return, handed back along with Completion.RETURN
+    private Object returnValue = null;
+    // the call a Completion.TAIL_CALL still has to make, see LoxFunction
+    LoxFunction tailFunction = null;
+    LoxInstance tailReceiver = null;
+    Object[] tailArgs = null;
+    // only set with --profile
+    Profiler profiler = null;
+    // the innermost call that ran out of stack, see call()
+    private Token overflowed = null;
 
     public Interpreter(){
         // std library functions 
@@ -45,10 +57,15 @@ public class Interpreter implements Expr.Visitor<Object>,
             public int arity() {return 0;}
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments){
+            public Object call0(Interpreter interpreter){
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
+            @Override
+            public Object call(Interpreter interpreter, Object[] arguments){
+                return call0(interpreter);
+            }
+
             @Override
             public String toString() { return "<native fn>";}
         });
@@ -58,28 +75,108 @@ public class Interpreter implements Expr.Visitor<Object>,
             public int arity() {return 0;}
 
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments)
+            public Object call0(Interpreter interpreter)
             {
                 try (Scanner scanner = new Scanner(System.in)) {
                     return scanner.nextLine();
                 }
             }
 
+            @Override
+            public Object call(Interpreter interpreter, Object[] arguments){
+                return call0(interpreter);
+            }
+
+            @Override
+            public String toString() {return "<native fn>";}
+        });
+
+        // lists, see LoxList
+        globals.define("list", new LoxCallable() {
+            @Override
+            public int arity() {return 0;}
+
+            @Override
+            public Object call0(Interpreter interpreter){
+                return new LoxList();
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, Object[] arguments){
+                return call0(interpreter);
+            }
+
+            @Override
+            public String toString() {return "<native fn>";}
+        });
+
+        globals.define("append", new LoxCallable() {
+            @Override
+            public int arity() {return 2;}
+
+            @Override
+            public Object call2(Interpreter interpreter, Object list, Object value){
+                if (!(list instanceof LoxList))
+                    throw new NativeError("Can only append to a list");
+                ((LoxList)list).add(value);
+                return null;
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, Object[] arguments){
+                return call2(interpreter, arguments[0], arguments[1]);
+            }
+
+            @Override
+            public String toString() {return "<native fn>";}
+        });
+
+        globals.define("len", new LoxCallable() {
+            @Override
+            public int arity() {return 1;}
+
+            @Override
+            public Object call1(Interpreter interpreter, Object list){
+                if (!(list instanceof LoxList))
+                    throw new NativeError("Can only take the length of a list");
+                return (double)((LoxList)list).size();
+            }
+
+            @Override
+            public Object call(Interpreter interpreter, Object[] arguments){
+                return call1(interpreter, arguments[0]);
+            }
+
             @Override
             public String toString() {return "<native fn>";}
         });
     }
 
-    void interpret(List<Stmt> statements) { 
+    public void interpret(List<Stmt> statements) { 
+        Stmt current = null;
         try {
-            for (Stmt stmt : statements)
-                stmt.accept(this);
+            for (Stmt stmt : statements){
+                current = stmt;
+                execute(stmt);
+            }
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
+        } catch (StackOverflowError error) {
+            // the call that ran out of stack, the top level statement if
+            // it happened outside of any
+            Lox.runtimeError("Stack overflow.", overflowed != null ? overflowed.line : current.line);
+        } finally {
+            overflowed = null;
+            // nothing of this run should stay reachable from here (see ReplSession)
+            returnValue = null;
+            tailFunction = null;
+            tailReceiver = null;
+            tailArgs = null;
         }
     }
 
-    private String stringify(Object value){
+    // the way print shows a value, LoxList uses it for the elements
+    static String stringify(Object value){
         if (value == null) return "nil";
 
         if (value instanceof Double){
@@ -100,13 +197,39 @@ public class Interpreter implements Expr.Visitor<Object>,
         return expr.accept(this);
     }
 
-    public void resolve(Expr expr, int depth){
-        locals.put(expr, depth);
-        return;
+    private void declare(int slot, Token name, Object value, boolean captured){
+        if (slot == -1)
+            globals.define(name.symbol, value);
+        else if (captured)
+            frame[slot] = new Cell(value);
+        else
+            frame[slot] = value;
     }
 
-    private void execute(Stmt statement){
-        statement.accept(this);
+    /* the cells a closure of decl takes along, see Stmt.Function.upvalues */
+    private Cell[] capture(Stmt.Function decl){
+        Cell[] cells = new Cell[decl.upvalues.length];
+        for (int i = 0; i < cells.length; ++i){
+            int upvalue = decl.upvalues[i];
+            cells[i] = (upvalue & 1) != 0 ? (Cell)frame[upvalue >> 1] : upvalues[upvalue >> 1];
+        }
+        return cells;
+    }
+
+    private Completion execute(Stmt statement){
+        if (profiler != null)
+            profiler.statement(statement);
+        return statement.accept(this);
+    }
+
+    /*
+     * called by LoxFunction after its body completed with RETURN,
+     * clears it so the value is not kept alive
+     */
+    Object takeReturnValue(){
+        Object value = returnValue;
+        returnValue = null;
+        return value;
     }
 
     @Override
@@ -114,48 +237,8 @@ public class Interpreter implements Expr.Visitor<Object>,
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
-            case PLUS:
-                if (left instanceof Double && right instanceof Double)
-                    return ((double)left + (double)right);
-                else if (left instanceof String && right instanceof String)
-                    return ((String)left + (String)right);
-                throw new RuntimeError(expr.operator, "Operands must be number or string");
-            case MINUS:
-                checkNumberOperands(expr.operator, left, right);
-                return ((double)left - (double)right);
-            case STAR:
-                checkNumberOperands(expr.operator, left, right);
-                return ((double)left * (double)right);
-            case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                return ((double)left / (double)right);
-            case GREATER:
-                checkNumberOperands(expr.operator, left, right);
-                return ((double)left > (double)right);
-            case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return ((double)left >= (double)right);
-            case LESS:
-                checkNumberOperands(expr.operator, left, right);
-                return ((double)left < (double)right);
-            case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
-                return ((double)left <= (double)right);
-            case EXCLAM_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EQUAL:
-                return isEqual(left, right);
-            default:
-                break;
-        }
-        return null;
-    }
-
-    private boolean isEqual(Object left, Object right){
-        if (left == null && right == null) return true;
-        if (left == null) return false;
-        return left.equals(right);
+        // the node rewrites itself on first run, see BinaryNode
+        return expr.node.execute(expr, left, right);
     }
 
     private void checkNumberOperand(Token operator, Object operand){
@@ -163,11 +246,6 @@ public class Interpreter implements Expr.Visitor<Object>,
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right){
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be of type number");
-    }
-
     @Override
     public Object visitGroupingExpr(Grouping expr) {
         return evaluate(expr.expression);
@@ -202,32 +280,49 @@ public class Interpreter implements Expr.Visitor<Object>,
     public Object visitVariableExpr(Variable expr){
         // return variables.get(expr.name.literal);
         // return env.get(expr.name);
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookUpVariable(Token name, Expr expr){
-        Integer dist = locals.get(expr);
-        if (dist != null)
-            return env.getAt(dist, name.lexeme);
-        else
-            return globals.get(name);
+    private Object lookUpVariable(Token name, int depth, int slot){
+        switch (depth){
+            case Resolver.LOCAL:
+                return frame[slot];
+            case Resolver.CELL:
+                return ((Cell)frame[slot]).value;
+            case Resolver.UPVALUE:
+                return upvalues[slot].value;
+            default:
+                return globals.get(name);
+        }
+    }
+
+    private void assignVariable(Token name, int depth, int slot, Object value){
+        switch (depth){
+            case Resolver.LOCAL:
+                frame[slot] = value;
+                break;
+            case Resolver.CELL:
+                ((Cell)frame[slot]).value = value;
+                break;
+            case Resolver.UPVALUE:
+                upvalues[slot].value = value;
+                break;
+            default:
+                globals.assign(name, value);
+        }
     }
 
     @Override
     public Object visitPreOpExpr(Expr.PreOp expr){
         // Object val = env.get(expr.identifier);
-        Object val = lookUpVariable(expr.identifier, expr);
+        Object val = lookUpVariable(expr.identifier, expr.depth, expr.slot);
         checkNumberOperand(expr.operator, val);
 
         double newVal = (expr.operator.type == PLUS_PLUS) ? ((double)(val) + 1)
                         : ((double)val - 1);
 
         // env.define(expr.identifier.lexeme, newVal);
-        Integer dist = locals.get(expr);
-        if (dist != null)
-            env.assignAt(dist, expr.identifier, newVal);
-        else
-            globals.assign(expr.identifier, newVal);
+        assignVariable(expr.identifier, expr.depth, expr.slot, newVal);
         // env.assignAt(null, null, val);
         return newVal;
     }
@@ -235,17 +330,13 @@ public class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitPostOpExpr(Expr.PostOp expr){
         // Object val = env.get(expr.identifier);
-        Object val = lookUpVariable(expr.identifier, expr);
+        Object val = lookUpVariable(expr.identifier, expr.depth, expr.slot);
         checkNumberOperand(expr.operator, val);
 
         double newVal = (expr.operator.type == PLUS_PLUS) ? ((double)(val) + 1)
                         : ((double)val - 1);
         
-        Integer dist = locals.get(expr);
-        if (dist != null)
-            env.assignAt(dist, expr.identifier, newVal);
-        else
-            globals.assign(expr.identifier, newVal);
+        assignVariable(expr.identifier, expr.depth, expr.slot, newVal);
         // env.assign(expr.identifier, newVal);
         return val;
     }
@@ -274,20 +365,139 @@ public class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitCallExpr(Expr.Call expr){
         Object callee = evaluate(expr.callee);
-
+        if (isInlined(expr, callee))
+            return evaluate(expr.inlined);
+        return call(callee, expr.paren, expr.arguments);
+    }
+
+    /*
+     * the call has the callee's body inlined (see Inliner) and the name
+     * still holds that function. --profile wants to see every call.
+     */
+    private boolean isInlined(Expr.Call expr, Object callee){
+        return expr.inlined != null && profiler == null && callee instanceof LoxFunction
+               && ((LoxFunction)callee).declaration == expr.inlinedFrom;
+    }
+
+    /*
+     * up to 3 arguments are passed as they are (see LoxCallable),
+     * they are all evaluated before the arity is checked. Lox calls that
+     * aren't tail calls use the java stack, the innermost call that runs
+     * out of it is the one interpret() reports. Nothing is allocated on
+     * the way out, that close to the end of the stack it would overflow
+     * again in every frame.
+     */
+    private Object call(Object callee, Token paren, List<Expr> arguments){
         if (!(callee instanceof LoxCallable))
-            throw new RuntimeError(expr.paren, "Can only call functions and classes");
+            throw new RuntimeError(paren, "Can only call functions and classes");
 
-        List<Object> args = new ArrayList<>();
-        for (Expr arg : expr.arguments)
-            args.add(evaluate(arg));
-        
-        LoxCallable function = (LoxCallable)callee;
-        if (args.size() != function.arity())
-            throw new RuntimeError(expr.paren, "Expected '"+ function.arity() + 
-                                   "' arugments, instead got '" + args.size() + "'.");
+        try {
+            return call((LoxCallable)callee, paren, arguments);
+        } catch (NativeError error){
+            throw new RuntimeError(paren, error.getMessage());
+        } catch (StackOverflowError error){
+            if (overflowed == null) overflowed = paren;
+            throw error;
+        }
+    }
+
+    private Object call(LoxCallable function, Token paren, List<Expr> arguments){
+        switch (arguments.size()){
+            case 0:
+                checkArity(paren, function, 0);
+                return function.call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                checkArity(paren, function, 1);
+                return function.call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                checkArity(paren, function, 2);
+                return function.call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                checkArity(paren, function, 3);
+                return function.call3(this, a, b, c);
+            }
+            default: {
+                Object[] args = evaluateArguments(arguments);
+                checkArity(paren, function, args.length);
+                return function.call(this, args);
+            }
+        }
+    }
+
+    private Object[] evaluateArguments(List<Expr> arguments){
+        Object[] args = new Object[arguments.size()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = evaluate(arguments.get(i));
+        return args;
+    }
+
+    private void checkArity(Token paren, LoxCallable function, int argc){
+        if (argc != function.arity())
+            throw new RuntimeError(paren, "Expected '"+ function.arity() + 
+                                   "' arugments, instead got '" + argc + "'.");
+    }
+
+    /*
+     * obj.method(args) in one go: the method gets the instance as 'this'
+     * in its own frame instead of going through a bound method
+     */
+    @Override
+    public Object visitInvokeExpr(Expr.Invoke expr){
+        Object obj = evaluate(expr.object);
+        if (!(obj instanceof LoxInstance))
+            throw new RuntimeError(expr.name, "Cannot access property '" + expr.name.lexeme + "' of a non instance object");
+
+        LoxInstance instance = (LoxInstance)obj;
+        LoxFunction method = instance.findMethod(expr);
+        // a field that holds something callable
+        if (method == null)
+            return call(instance.field(expr.index), expr.paren, expr.arguments);
+
+        try {
+            return invoke(method, instance, expr.paren, expr.arguments);
+        } catch (StackOverflowError error){
+            if (overflowed == null) overflowed = expr.paren;
+            throw error;
+        }
+    }
 
-        return function.call(this, args);
+    private Object invoke(LoxFunction method, LoxInstance instance, Token paren, List<Expr> arguments){
+        switch (arguments.size()){
+            case 0:
+                checkArity(paren, method, 0);
+                return method.invoke0(this, instance);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                checkArity(paren, method, 1);
+                return method.invoke1(this, instance, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                checkArity(paren, method, 2);
+                return method.invoke2(this, instance, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                checkArity(paren, method, 3);
+                return method.invoke3(this, instance, a, b, c);
+            }
+            default: {
+                Object[] args = evaluateArguments(arguments);
+                checkArity(paren, method, args.length);
+                return method.invoke(this, instance, args);
+            }
+        }
     }
 
     @Override
@@ -295,7 +505,7 @@ public class Interpreter implements Expr.Visitor<Object>,
         Object obj = evaluate(expr.object);
         if (!(obj instanceof LoxInstance))
             throw new RuntimeError(expr.name, "Cannot access property '" + expr.name.lexeme + "' of a non instance object");
-        return ((LoxInstance) obj).get(expr.name);
+        return ((LoxInstance) obj).get(expr);
     }
 
     @Override
@@ -306,22 +516,53 @@ public class Interpreter implements Expr.Visitor<Object>,
             throw new RuntimeError(expr.name, "Only instances can have fields");
         Object rval = evaluate(expr.value);
         // does not raise error if there is no requested property, instead it just adds that.
-        ((LoxInstance) obj).set(expr.name, rval);
+        ((LoxInstance) obj).set(expr, rval);
+        return rval;
+    }
+
+    @Override
+    public Object visitIndexExpr(Expr.Index expr){
+        Object obj = evaluate(expr.object);
+        if (!(obj instanceof LoxList))
+            throw new RuntimeError(expr.bracket, "Can only index lists");
+        LoxList list = (LoxList)obj;
+        return list.get(index(expr.bracket, list, evaluate(expr.index)));
+    }
+
+    @Override
+    public Object visitSetIndexExpr(Expr.SetIndex expr){
+        Object obj = evaluate(expr.object);
+        if (!(obj instanceof LoxList))
+            throw new RuntimeError(expr.bracket, "Can only index lists");
+        LoxList list = (LoxList)obj;
+        Object index = evaluate(expr.index);
+        Object rval = evaluate(expr.value);
+        list.set(index(expr.bracket, list, index), rval);
         return rval;
     }
 
+    private int index(Token bracket, LoxList list, Object index){
+        if (!(index instanceof Double))
+            throw new RuntimeError(bracket, "List index must be a number");
+        double value = (double)index;
+        if (value != (int)value)
+            throw new RuntimeError(bracket, "List index must be a whole number");
+        if (value < 0 || value >= list.size())
+            throw new RuntimeError(bracket, "List index out of range");
+        return (int)value;
+    }
+
     @Override
     public Object visitThisExpr(Expr.This expr){
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr){
-        int dist = locals.get(expr);
-        LoxClass superclass = (LoxClass)env.getAt(dist, "super");
-        LoxInstance obj = (LoxInstance)env.getAt(dist - 1, "this");
+        LoxClass superclass = (LoxClass)lookUpVariable(expr.keyword, expr.depth, expr.slot);
+        LoxInstance obj = (LoxInstance)lookUpVariable(expr.keyword, expr.thisDepth, expr.thisSlot);
 
-        LoxFunction func = superclass.findMethod(expr.method.lexeme);
+        LoxFunction func = superclass.findMethod(expr.method.symbol);
         if (func == null){
             throw new RuntimeError(expr.method, "Cannot find property '" + expr.method.lexeme + "' of class " + superclass + ".");
         }
@@ -329,81 +570,91 @@ public class Interpreter implements Expr.Visitor<Object>,
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print printStmt){
+    public Completion visitPrintStmt(Stmt.Print printStmt){
         Object e = evaluate(printStmt.expression);
         System.out.println(stringify(e));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt){
+    public Completion visitExpressionStmt(Stmt.Expression stmt){
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var varStmt){
+    public Completion visitVarStmt(Stmt.Var varStmt){
         Object e = null;
         if (varStmt.expression != null)
             e = evaluate(varStmt.expression);
         // Object e = evaluate(varStmt.expression);
-        env.define(varStmt.identifier.lexeme, e);
+        declare(varStmt.slot, varStmt.identifier, e, varStmt.captured);
         // variables.put(varStmt.identifier.literal, e);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignmentExpr(Expr.Assignment expr) {
         Object e = evaluate(expr.expression);
-        Integer dist = locals.get(expr);
-        if (dist != null)
-            env.assignAt(dist, expr.identifier, e);
-        else
-            globals.assign(expr.identifier, e);
+        assignVariable(expr.identifier, expr.depth, expr.slot, e);
         return e;
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block blockStmt){
-        Environment newEnv = new Environment(env);
-        executeBlock(blockStmt.statements, newEnv);
+    public Completion visitBlockStmt(Stmt.Block blockStmt){
+        Object[] blockFrame = blockStmt.elided ? frame : Environment.frame(blockStmt.locals);
+        if (blockStmt.resets != null){
+            for (int reset : blockStmt.resets)
+                blockFrame[reset >> 1] = (reset & 1) != 0 ? new Cell(null) : null;
+        }
+        return executeBlock(blockStmt.statements, blockFrame, upvalues);
         // for (Stmt stmt : blockStmt.statements)
         //     stmt.accept(this);
         // env = env.parentEnv;
-        return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If ifStmt){
+    public Completion visitIfStmt(Stmt.If ifStmt){
         Object cond = evaluate(ifStmt.condition);
         if (isTruthy(cond))
-            execute(ifStmt.thenBranch);
+            return execute(ifStmt.thenBranch);
         else if (ifStmt.elseBranch != null)
-            execute(ifStmt.elseBranch);
-        return null;
+            return execute(ifStmt.elseBranch);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While whileStmt){
-        while (isTruthy(evaluate(whileStmt.condition)))
-            execute(whileStmt.body);
-        return null;
+    public Completion visitWhileStmt(Stmt.While whileStmt){
+        while (isTruthy(evaluate(whileStmt.condition))){
+            Completion completion = execute(whileStmt.body);
+            if (completion != Completion.NORMAL)
+                return completion;
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function funcStmt){
-        LoxFunction func = new LoxFunction(funcStmt, env, false);
-        env.define(funcStmt.name.lexeme, func);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function funcStmt){
+        if (funcStmt.captured){
+            // the cell goes in first, the function may call itself
+            Cell cell = new Cell(null);
+            frame[funcStmt.slot] = cell;
+            cell.value = new LoxFunction(funcStmt, capture(funcStmt), false, false);
+        } else {
+            declare(funcStmt.slot, funcStmt.name,
+                    new LoxFunction(funcStmt, capture(funcStmt), false, false), false);
+        }
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class clsStmt){
-        env.define(clsStmt.name.lexeme, null);
-        Map<String, LoxFunction> methods = new HashMap<>();
+    public Completion visitClassStmt(Stmt.Class clsStmt){
+        declare(clsStmt.slot, clsStmt.name, null, clsStmt.captured);
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
 
         
         LoxClass superclass = null;
+        Object[] prevFrame = frame;
         if (clsStmt.superclass != null){
             Object supercls = evaluate(clsStmt.superclass);
             if (!(supercls instanceof LoxClass))
@@ -411,23 +662,30 @@ public class Interpreter implements Expr.Visitor<Object>,
                                         "Can only inherit from a class");
             
             superclass = (LoxClass)supercls;
-            env = new Environment(env);
-            env.define("super", superclass);
+            // a top level class has a frame of its own for 'super'
+            if (frame == null)
+                frame = Environment.frame(1);
+            frame[clsStmt.superSlot] = new Cell(superclass);
         }
-        for (Stmt.Function methodDef : clsStmt.methods){
-            methods.put(
-                methodDef.name.lexeme, 
-                new LoxFunction(methodDef, env, 
-                methodDef.name.lexeme.equals(LoxClass.constructorName))
-            );
+        try {
+            for (Stmt.Function methodDef : clsStmt.methods){
+                methods.put(
+                    methodDef.name.symbol, 
+                    new LoxFunction(methodDef, capture(methodDef), true,
+                    methodDef.name.symbol == LoxClass.constructorSymbol)
+                );
+            }
+        } finally {
+            frame = prevFrame;
         }
 
         LoxClass cls = new LoxClass(clsStmt.name.lexeme, superclass, methods);
 
-        if (superclass != null)
-            env = env.parentEnv;
         //assign in global (or actually more generally parent) environment
-        env.assign(clsStmt.name, cls);
+        if (clsStmt.captured)
+            ((Cell)frame[clsStmt.slot]).value = cls;
+        else
+            declare(clsStmt.slot, clsStmt.name, cls, false);
         // Environment newEnv = new Environment(this.env);
         // List<LoxFunction> methods = new ArrayList<>();
         // for (Stmt.Function method : clsStmt.methods){
@@ -439,28 +697,92 @@ public class Interpreter implements Expr.Visitor<Object>,
         // LoxClass cls = new LoxClass(clsStmt, newEnv, methods);
         // env.define(clsStmt.name.lexeme, cls);
 
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return retStmt){
+    public Completion visitReturnStmt(Stmt.Return retStmt){
         Object val = null;
 
+        if (retStmt.expression instanceof Expr.Call && ((Expr.Call)retStmt.expression).tail)
+            return tailCall((Expr.Call)retStmt.expression);
+        if (retStmt.expression instanceof Expr.Invoke && ((Expr.Invoke)retStmt.expression).tail)
+            return tailInvoke((Expr.Invoke)retStmt.expression);
+
         if (retStmt.expression != null)
             val = evaluate(retStmt.expression);
 
-        throw new Return(val);
+        returnValue = val;
+        return Completion.RETURN;
+    }
+
+    /*
+     * 'return f(args)': everything up to the call itself is done here,
+     * the call is left to the trampoline in LoxFunction. Natives and
+     * classes are simply called, they don't recurse through Lox code.
+     */
+    private Completion tailCall(Expr.Call expr){
+        Object callee = evaluate(expr.callee);
+        if (isInlined(expr, callee)){
+            returnValue = evaluate(expr.inlined);
+            return Completion.RETURN;
+        }
+        if (!(callee instanceof LoxFunction)){
+            returnValue = call(callee, expr.paren, expr.arguments);
+            return Completion.RETURN;
+        }
+
+        LoxFunction function = (LoxFunction)callee;
+        Object[] args = evaluateArguments(expr.arguments);
+        checkArity(expr.paren, function, args.length);
+        return scheduleTailCall(function, function.receiver, args);
+    }
+
+    private Completion tailInvoke(Expr.Invoke expr){
+        Object obj = evaluate(expr.object);
+        if (!(obj instanceof LoxInstance))
+            throw new RuntimeError(expr.name, "Cannot access property '" + expr.name.lexeme + "' of a non instance object");
+
+        LoxInstance instance = (LoxInstance)obj;
+        LoxFunction method = instance.findMethod(expr);
+        if (method == null){
+            Object callee = instance.field(expr.index);
+            if (!(callee instanceof LoxFunction)){
+                returnValue = call(callee, expr.paren, expr.arguments);
+                return Completion.RETURN;
+            }
+            method = (LoxFunction)callee;
+            instance = method.receiver;
+        }
+
+        Object[] args = evaluateArguments(expr.arguments);
+        checkArity(expr.paren, method, args.length);
+        return scheduleTailCall(method, instance, args);
     }
 
-    public void executeBlock(List<Stmt> stmts, Environment newEnv){
-        Environment prevEnv = this.env;
+    private Completion scheduleTailCall(LoxFunction function, LoxInstance receiver, Object[] args){
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailArgs = args;
+        return Completion.TAIL_CALL;
+    }
+
+    public Completion executeBlock(List<Stmt> stmts, Object[] newFrame, Cell[] newUpvalues){
+        Object[] prevFrame = this.frame;
+        Cell[] prevUpvalues = this.upvalues;
         try {
-            this.env = newEnv;
-            for (Stmt stmt : stmts)
-                execute(stmt);
+            this.frame = newFrame;
+            this.upvalues = newUpvalues;
+            for (Stmt stmt : stmts){
+                Completion completion = execute(stmt);
                 // stmt.accept(this);
+                if (completion != Completion.NORMAL)
+                    return completion;
+            }
+            return Completion.NORMAL;
         } finally {
-            this.env = prevEnv;
+            this.frame = prevFrame;
+            this.upvalues = prevUpvalues;
         }
     }
 
@@ -4,8 +4,9 @@ package lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 
@@ -17,21 +18,103 @@ public class Lox {
 	public static Boolean hadRuntimeError =false;
 
 	public static final Interpreter interpreter = new Interpreter();
+	// --profile writes <script>.profile.txt/.folded next to the script,
+	// --profile=<prefix> writes <prefix>.txt/.folded instead, see Profiler
+	private static boolean profile = false;
+	private static Path profilePrefix = null;
+
+	// the passes (resolver, optimizer, inliner, AST cache, interpreter)
+	// recurse once per level of nesting, the default 512k-1m thread stack
+	// runs out at a few thousand levels. 256m takes them past 100,000
+	// levels of nested expressions, it is only reserved, pages get
+	// touched as they are used.
+	private static final long STACK_SIZE = 256L << 20;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, () -> {
+			try {
+				start(args);
+			} catch (IOException e){
+				throw new UncheckedIOException(e);
+			}
+		}, "main", STACK_SIZE);
+		thread.setUncaughtExceptionHandler((t, e) -> failure[0] = e);
+		thread.start();
+		thread.join();
+
+		if (failure[0] instanceof UncheckedIOException)
+			throw ((UncheckedIOException)failure[0]).getCause();
+		if (failure[0] instanceof StackOverflowError){
+			// the interpreter reports its own, this is a compile pass
+			System.out.println("Error: program nested too deeply.");
+			System.exit(65);
+		}
+		if (failure[0] != null){
+			failure[0].printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static void start(String[] args) throws IOException {
+		if (args.length > 0 && args[0].equals("--build-archive")){
+			if (args.length > 2){
+				System.out.println("Usage: jlox --build-archive [archive]");
+				System.exit(64);
+			}
+			System.exit(ArchiveBuilder.build(args.length == 2 ? args[1] : null));
+		}
+
+		int argc = 0;
+		for (; argc < args.length && args[argc].startsWith("--"); argc++){
+			if (args[argc].equals("--profile"))
+				profile = true;
+			else if (args[argc].startsWith("--profile=") && args[argc].length() > "--profile=".length()){
+				profile = true;
+				profilePrefix = Paths.get(args[argc].substring("--profile=".length()));
+			}
+			else
+				break;
+		}
 
-	public static void main(String[] args) throws IOException {
-		if (args.length > 1){
-			System.out.println("Usage: jlox [script]");
+		if (args.length - argc > 1 || profile && args.length - argc == 0){
+			System.out.println("Usage: jlox [--profile[=prefix]] [script]");
 			System.exit(64);
-		} else if (args.length == 1) {
-			runFile(args[0]);
+		} else if (args.length - argc == 1) {
+			runFile(args[argc]);
 		} else {
 			runPrompt();
 		}
 	}
 
 	public static void runFile(String path) throws IOException {
-		byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(new String(bytes, Charset.defaultCharset()));
+		// the scanner reads the file straight from a memory mapping
+		ByteBuffer source = Scanner.map(Paths.get(path));
+
+		// unchanged scripts skip scanning, parsing and resolving (see AstCache)
+		AstCache cache = AstCache.open();
+		byte[] hash = cache != null ? cache.hash(source) : null;
+		LoxEvents.Phase phase = LoxEvents.beginPhase("cache-load");
+		List<Stmt> stmts = cache != null ? cache.load(hash) : null;
+		if (stmts != null)
+			LoxEvents.endPhase(phase);
+		if (stmts == null){
+			stmts = compile(new Scanner(source));
+			if (stmts != null && cache != null)
+				cache.store(hash, stmts);
+		}
+		if (stmts != null && profile){
+			interpreter.profiler = new Profiler();
+			execute(stmts);
+			Path prefix = profilePrefix != null ? profilePrefix : Paths.get(path + ".profile");
+			try {
+				interpreter.profiler.finish(prefix.toAbsolutePath());
+			} catch (IOException e){
+				System.err.println("could not write the profile: " + e);
+			}
+		} else if (stmts != null){
+			execute(stmts);
+		}
 
 		if (hadError) System.exit(65);
 		if (hadRuntimeError) System.exit(70);
@@ -41,42 +124,61 @@ public class Lox {
 		InputStreamReader input = new InputStreamReader(System.in);
 		BufferedReader reader = new BufferedReader(input);
 
+		ReplSession session = new ReplSession();
 		for (;;){
-			System.out.print("> ");
+			System.out.print(session.isContinuing() ? "... " : "> ");
 			String line = reader.readLine();
 			if (line == null) break;
-			run(line);
-			hadError =false;
-			hadRuntimeError =false;
+			session.feed(line);
 		}
 		System.out.println("");
 	}
 
-	public static void run(String source){
-		Scanner scanner = new Scanner(source);
-		List<Token> tokens = scanner.scanTokens();
-		Parser parser = new Parser(tokens);
+	public static void run(Scanner scanner){
+		List<Stmt> stmts = compile(scanner);
+		if (stmts != null)
+			execute(stmts);
+	}
+
+	// the resolved program, null if there were errors
+	static List<Stmt> compile(Scanner scanner){
+		// the parser pulls tokens from the scanner as it needs them
+		LoxEvents.Phase phase = LoxEvents.beginPhase("parse");
+		Parser parser = new Parser(scanner);
 		List<Stmt> stmts = parser.parse();
+		LoxEvents.endPhase(phase);
 
-		if (hadError) return;
+		if (hadError) return null;
 
-		Resolver resolver = new Resolver(interpreter);
+		phase = LoxEvents.beginPhase("resolve");
+		Resolver resolver = new Resolver();
 		resolver.resolve(stmts);
+		LoxEvents.endPhase(phase);
+
+		if (hadError) return null;
 
-		if (hadError) return;
+		phase = LoxEvents.beginPhase("optimize");
+		stmts = new Optimizer().optimize(stmts);
+		new Inliner().inline(stmts);
+		LoxEvents.endPhase(phase);
+		return stmts;
+	}
 
+	static void execute(List<Stmt> stmts){
+		LoxEvents.Phase phase = LoxEvents.beginPhase("interpret");
 		interpreter.interpret(stmts);
+		LoxEvents.endPhase(phase);
 		// System.out.println(new AstPrinter().print(expr));
 		// for (Token token : tokens)
 			// System.out.println(token);
 		//System.out.println(source);
 	}
 
-	static void error(int line, String msg){
+	public static void error(int line, String msg){
 		report(line, "", msg);
 	}
 
-	static void error(Token token, String msg){
+	public static void error(Token token, String msg){
 		if (token.type == TokenType.EOF)
 			report(token.line, " at the end", msg);
 		else 
@@ -84,9 +186,16 @@ public class Lox {
 	}
 
 	static void runtimeError(RuntimeError error){
-		System.err.println(error.getMessage() + 
-		"\n[line " + error.token.line + "]");
+		runtimeError(error.getMessage(), error.token.line);
+	}
+
+	public static void runtimeError(String msg, int line){
+		System.err.println(msg + 
+		"\n[line " + line + "]");
 		hadRuntimeError = true;
+
+		if (LoxEvents.enabled)
+			LoxEvents.runtimeError(msg, line);
 	}
 
 	private static void report(int line, String where, String msg){
@@ -1,8 +1,31 @@
 package lox;
 
-import java.util.List;
-
+/*
+ * Calls with up to 3 arguments go through the fixed arity entry points,
+ * so the caller does not have to collect the arguments first, anything
+ * longer passes an array. The interpreter checks arity() before calling,
+ * an implementation only ever sees the number of arguments it declared.
+ *
+ * The defaults just pack the arguments for call(), implementations
+ * override the ones they can take directly.
+ */
 public interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> args);
-}
\ No newline at end of file
+    Object call(Interpreter interpreter, Object[] args);
+
+    default Object call0(Interpreter interpreter){
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object a){
+        return call(interpreter, new Object[]{a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b){
+        return call(interpreter, new Object[]{a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c){
+        return call(interpreter, new Object[]{a, b, c});
+    }
+}
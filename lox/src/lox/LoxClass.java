@@ -9,23 +9,38 @@ public class LoxClass implements LoxCallable
 {
 
     public final static String constructorName = "init";
+    public final static Symbol constructorSymbol = SymbolTable.intern(constructorName);
 
     final String name;
     final LoxClass superclass;
 
-    Map<String, LoxFunction> methods = new HashMap<>();
+    /*
+     * flattened: the superclass's table with this class's own methods
+     * put over it, built once when the class is created, so an inherited
+     * method is a single probe no matter how deep the hierarchy is
+     */
+    private final Map<Symbol, LoxFunction> methods;
+    private final LoxFunction initializer;
 
-    public LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+    // every instance starts out with this shape (see Shape)
+    final Shape rootShape = new Shape();
+    // largest number of fields an instance has grown to so far
+    int instanceSize = 0;
+
+    public LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods) {
         this.name = name;
         this.superclass = superclass;
-        this.methods = methods;
+
+        Map<Symbol, LoxFunction> table = new HashMap<>();
+        if (superclass != null)
+            table.putAll(superclass.methods);
+        table.putAll(methods);
+        this.methods = Map.copyOf(table);
+        this.initializer = this.methods.get(constructorSymbol);
     }
 
-    public LoxFunction findMethod(String name){
-        LoxFunction func =  methods.get(name);
-        if (func == null && superclass != null)
-            func = superclass.findMethod(name);
-        return func;
+    public LoxFunction findMethod(Symbol name){
+        return methods.get(name);
     }
 
     @Override
@@ -35,20 +50,50 @@ public class LoxClass implements LoxCallable
     
     @Override
     public int arity(){
-        if (methods.containsKey(constructorName))
-            return methods.get(constructorName).arity();
+        if (initializer != null)
+            return initializer.arity();
         return 0;
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> args) {
+    public Object call(Interpreter interpreter, Object[] args) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initMethod = findMethod(constructorName);
-        if (initMethod != null){
-            initMethod.bind(instance)
-                      .call(interpreter, args);
+        if (initializer != null){
+            initializer.invoke(interpreter, instance, args);
         }
         return instance;
     }
 
+    @Override
+    public Object call0(Interpreter interpreter){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null)
+            initializer.invoke0(interpreter, instance);
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null)
+            initializer.invoke1(interpreter, instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null)
+            initializer.invoke2(interpreter, instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c){
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null)
+            initializer.invoke3(interpreter, instance, a, b, c);
+        return instance;
+    }
+
 }
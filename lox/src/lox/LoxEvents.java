@@ -0,0 +1,148 @@
+package lox;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * JDK Flight Recorder events, so Lox level activity shows up in the same
+ * recording as the GC and allocation events of the JVM.
+ *
+ * Every type can be switched on and off on its own through the usual
+ * JFR settings, e.g.
+ *   java -XX:StartFlightRecording:filename=rec.jfr,+lox.FunctionCall#enabled=true ...
+ * FunctionCall and EnvironmentAllocation fire on every call, so they are
+ * off unless asked for; the rest are on in any recording.
+ *
+ * Two guards. Loading a jdk.jfr.Event subclass drags in a few hundred
+ * JFR classes (~250ms of startup), so the interpreter only goes near the
+ * event classes once 'enabled' says JFR is up in this JVM. That is
+ * checked again at every phase boundary, so a recording started later
+ * with jcmd JFR.start is picked up from the next phase on. Past that the
+ * usual Event.isEnabled()/shouldCommit() pattern decides per event type,
+ * and an event that is off costs an allocation the JIT removes.
+ *
+ * Java stack traces are turned off, they would only show the interpreter.
+ */
+final class LoxEvents {
+    private LoxEvents(){}
+
+    static boolean enabled = FlightRecorder.isInitialized();
+
+    static Phase beginPhase(String name){
+        enabled = FlightRecorder.isInitialized();
+        return enabled ? new Phase(name) : null;
+    }
+
+    static void endPhase(Phase phase){
+        if (phase != null)
+            phase.commit();
+    }
+
+    static FunctionCall beginCall(){
+        FunctionCall event = new FunctionCall();
+        event.begin();
+        return event;
+    }
+
+    static void instantiation(LoxClass cls){
+        Instantiation event = new Instantiation();
+        if (event.isEnabled()){
+            event.className = cls.name;
+            event.commit();
+        }
+    }
+
+    static void environmentAllocation(int slots){
+        EnvironmentAllocation event = new EnvironmentAllocation();
+        if (event.isEnabled()){
+            event.slots = slots;
+            event.commit();
+        }
+    }
+
+    static void runtimeError(String message, int line){
+        RuntimeError event = new RuntimeError();
+        if (event.isEnabled()){
+            event.message = message;
+            event.line = line;
+            event.commit();
+        }
+    }
+
+    @Name("lox.FunctionCall")
+    @Label("Lox Function Call")
+    @Category("Lox")
+    @Description("A call of a Lox function or method, a tail call is an event of its own")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class FunctionCall extends Event {
+        @Label("Function")
+        String function;
+
+        @Label("Line")
+        @Description("Line the function is declared on")
+        int line;
+
+        void end(Stmt.Function declaration){
+            if (shouldCommit()){
+                function = declaration.name.lexeme;
+                line = declaration.line;
+                commit();
+            }
+        }
+    }
+
+    @Name("lox.Instantiation")
+    @Label("Lox Instantiation")
+    @Category("Lox")
+    @StackTrace(false)
+    static final class Instantiation extends Event {
+        @Label("Class")
+        String className;
+    }
+
+    @Name("lox.RuntimeError")
+    @Label("Lox Runtime Error")
+    @Category("Lox")
+    @StackTrace(false)
+    static final class RuntimeError extends Event {
+        @Label("Message")
+        String message;
+
+        @Label("Line")
+        int line;
+    }
+
+    @Name("lox.EnvironmentAllocation")
+    @Label("Lox Environment Allocation")
+    @Category("Lox")
+    @Description("A frame for the locals of a call (or a top level block) was allocated")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class EnvironmentAllocation extends Event {
+        @Label("Slots")
+        int slots;
+    }
+
+    @Name("lox.Phase")
+    @Label("Lox Phase")
+    @Category("Lox")
+    @Description("parse (the scanner runs inside it, it is pulled token by token), "
+                 + "resolve, optimize, cache-load or interpret")
+    @StackTrace(false)
+    static final class Phase extends Event {
+        @Label("Phase")
+        String phase;
+
+        Phase(String phase){
+            this.phase = phase;
+            begin();
+        }
+    }
+}
@@ -1,17 +1,26 @@
 package lox;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable{
 
-    private final Stmt.Function declaration;
-    private Environment localEnv = null;
+    final Stmt.Function declaration;
+    // the captured locals it uses, see Stmt.Function.upvalues
+    private final Cell[] upvalues;
+    private final boolean isMethod;
     private final Boolean isInitializer;
+    // what 'this' is, only set when a method is taken as a value (obj.method)
+    final LoxInstance receiver;
+
+    public LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isMethod, Boolean isInitializer){
+        this(declaration, upvalues, isMethod, isInitializer, null);
+    }
 
-    public LoxFunction(Stmt.Function declaration, Environment env, Boolean isInitializer){
+    private LoxFunction(Stmt.Function declaration, Cell[] upvalues, boolean isMethod,
+                        Boolean isInitializer, LoxInstance receiver){
         this.declaration = declaration;
-        this.localEnv = env;
+        this.upvalues = upvalues;
+        this.isMethod = isMethod;
         this.isInitializer = isInitializer;
+        this.receiver = receiver;
     }
 
     @Override
@@ -20,30 +29,146 @@ public class LoxFunction implements LoxCallable{
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> args){
-        Environment env = new Environment(localEnv);
-        for (int i=0; i < declaration.params.size(); i++)
-            env.define(declaration.params.get(i).lexeme, 
-                       args.get(i));
-        try{
-            interpreter.executeBlock(declaration.body, env);
-        } catch (Return retExcep){
+    public Object call(Interpreter interpreter, Object[] args){
+        return invoke(interpreter, receiver, args);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter){
+        return invoke0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a){
+        return invoke1(interpreter, receiver, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b){
+        return invoke2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c){
+        return invoke3(interpreter, receiver, a, b, c);
+    }
+
+    /*
+     * a method's frame has 'this' in slot 0 followed by the params
+     * (the Resolver lays it out that way), plain functions start
+     * with the params
+     */
+    private Object[] frame(LoxInstance thisObj){
+        Object[] frame = Environment.frame(declaration.locals);
+        if (isMethod)
+            frame[0] = thisObj;
+        return frame;
+    }
+
+    /* once the params are in, the captured ones go into cells */
+    private void box(Object[] frame){
+        for (int slot : declaration.captures)
+            frame[slot] = new Cell(frame[slot]);
+    }
+
+    private int firstParam(){
+        return isMethod ? 1 : 0;
+    }
+
+    public Object invoke(Interpreter interpreter, LoxInstance thisObj, Object[] args){
+        Object[] frame = frame(thisObj);
+        int base = firstParam();
+        for (int i=0; i < args.length; i++)
+            frame[base + i] = args[i];
+        return run(interpreter, frame, thisObj);
+    }
+
+    public Object invoke0(Interpreter interpreter, LoxInstance thisObj){
+        return run(interpreter, frame(thisObj), thisObj);
+    }
+
+    public Object invoke1(Interpreter interpreter, LoxInstance thisObj, Object a){
+        Object[] frame = frame(thisObj);
+        int base = firstParam();
+        frame[base] = a;
+        return run(interpreter, frame, thisObj);
+    }
+
+    public Object invoke2(Interpreter interpreter, LoxInstance thisObj, Object a, Object b){
+        Object[] frame = frame(thisObj);
+        int base = firstParam();
+        frame[base] = a;
+        frame[base + 1] = b;
+        return run(interpreter, frame, thisObj);
+    }
+
+    public Object invoke3(Interpreter interpreter, LoxInstance thisObj, Object a, Object b, Object c){
+        Object[] frame = frame(thisObj);
+        int base = firstParam();
+        frame[base] = a;
+        frame[base + 1] = b;
+        frame[base + 2] = c;
+        return run(interpreter, frame, thisObj);
+    }
+
+    /*
+     * trampoline: when the body ends in 'return g(...)' (TAIL_CALL) g runs
+     * right here, in a fresh frame but in this same java frame, so
+     * tail recursive (also mutually recursive) code doesn't grow the stack.
+     * The profiler's stack and the JFR event are closed in the finally,
+     * a runtime error or a stack overflow goes through here too.
+     */
+    private Object run(Interpreter interpreter, Object[] frame, LoxInstance thisObj){
+        LoxFunction function = this;
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null)
+            profiler.enter(function.declaration);
+        LoxEvents.FunctionCall event = LoxEvents.enabled ? LoxEvents.beginCall() : null;
+        try {
+            box(frame);
+            Completion completion = interpreter.executeBlock(function.declaration.body, frame, upvalues);
+            while (completion == Completion.TAIL_CALL){
+                if (event != null)
+                    event.end(function.declaration);
+                event = null;
+                function = interpreter.tailFunction;
+                thisObj = interpreter.tailReceiver;
+                Object[] args = interpreter.tailArgs;
+                interpreter.tailFunction = null;
+                interpreter.tailReceiver = null;
+                interpreter.tailArgs = null;
+
+                frame = function.frame(thisObj);
+                int base = function.firstParam();
+                for (int i=0; i < args.length; i++)
+                    frame[base + i] = args[i];
+                function.box(frame);
+                if (profiler != null){
+                    profiler.exit();
+                    profiler.enter(function.declaration);
+                }
+                event = LoxEvents.enabled ? LoxEvents.beginCall() : null;
+                completion = interpreter.executeBlock(function.declaration.body, frame, function.upvalues);
+            }
             /*
              * return; is allowed from initializer
              * but return smth; is not!
              */
-            if (isInitializer) return localEnv.getAt(0, "this");
-            return retExcep.value;
+            if (function.isInitializer)
+                return thisObj;
+            if (completion == Completion.RETURN)
+                return interpreter.takeReturnValue();
+            return null;
+        } finally {
+            if (event != null)
+                event.end(function.declaration);
+            if (profiler != null)
+                profiler.exit();
         }
-        if (isInitializer)
-            return localEnv.getAt(0, "this");
-        return null;
     }
 
     LoxFunction bind(LoxInstance instance){
-        Environment env = new Environment(this.localEnv);
-        env.define("this", instance);
-        return new LoxFunction(declaration, env, isInitializer);
+        return new LoxFunction(declaration, upvalues, isMethod, isInitializer, instance);
     }
 
     @Override
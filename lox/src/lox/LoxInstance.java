@@ -1,33 +1,119 @@
 package lox;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
+/*
+ * Fields live in a plain array, laid out by the instance's Shape.
+ *
+ * get/set take the expression doing the access since it doubles as a
+ * (monomorphic) inline cache: if the instance has the shape the site saw
+ * last time, the cached index (or method) is used without any lookup.
+ */
 public class LoxInstance {
+    private static final Object[] NO_VALUES = new Object[0];
+
     private final LoxClass cls;
-    private final Map<String, Object> fields = new HashMap<>();
+    private Shape shape;
+    private Object[] values;
 
     public LoxInstance(LoxClass cls){
         this.cls = cls;
-    }
+        this.shape = cls.rootShape;
+        this.values = cls.instanceSize == 0 ? NO_VALUES : new Object[cls.instanceSize];
 
-    public Object get(Token name){
-        if (fields.containsKey(name.lexeme))
-            return fields.get(name.lexeme);
+        if (LoxEvents.enabled)
+            LoxEvents.instantiation(cls);
+    }
 
+    public Object get(Expr.Get site){
+        if (site.shape == shape){
+            if (site.index != -1)
+                return values[site.index];
+            return site.method.bind(this);
+        }
 
+        Token name = site.name;
+        int index = shape.indexOf(name.symbol);
+        if (index != -1){
+            site.shape = shape;
+            site.index = index;
+            site.method = null;
+            return values[index];
+        }
 
-        LoxFunction method = cls.findMethod(name.lexeme);
+        LoxFunction method = cls.findMethod(name.symbol);
         // System.out.println(method);
-        if (method != null) return method.bind(this);
-
+        if (method != null){
+            // methods can't change once the class exists, the shape implies the class
+            site.shape = shape;
+            site.index = -1;
+            site.method = method;
+            return method.bind(this);
+        }
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "' of class " + cls + ".");
     }
 
-    public void set(Token name, Object val){
-        fields.put(name.lexeme, val);
+    /*
+     * obj.name(args): the method to run directly on this instance, so no
+     * bound method gets created, or null if 'name' is a field
+     * (site.index is then where it is, see field())
+     */
+    public LoxFunction findMethod(Expr.Invoke site){
+        if (site.shape == shape)
+            return site.method;
+
+        Token name = site.name;
+        int index = shape.indexOf(name.symbol);
+        LoxFunction method = null;
+        if (index == -1){
+            method = cls.findMethod(name.symbol);
+            if (method == null)
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "' of class " + cls + ".");
+        }
+
+        site.shape = shape;
+        site.index = index;
+        site.method = method;
+        return method;
+    }
+
+    public Object field(int index){
+        return values[index];
+    }
+
+    public void set(Expr.Set site, Object val){
+        if (site.shape == shape){
+            if (site.next != null)
+                addField(site.next);
+            values[site.index] = val;
+            return;
+        }
+
+        Shape before = shape;
+        Shape next = null;
+        int index = shape.indexOf(site.name.symbol);
+        if (index == -1){
+            next = shape.withField(site.name.symbol);
+            index = before.size();
+            addField(next);
+        }
+        values[index] = val;
+
+        site.shape = before;
+        site.next = next;
+        site.index = index;
+    }
+
+    private void addField(Shape next){
+        int size = next.size();
+        if (values.length < size){
+            values = Arrays.copyOf(values, Math.max(size, values.length * 2));
+            // so the next instances of the class start out big enough
+            if (cls.instanceSize < size)
+                cls.instanceSize = size;
+        }
+        shape = next;
     }
 
     @Override
@@ -0,0 +1,102 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/*
+ * The built-in list: list() makes one, append(l, v) and len(l) grow and
+ * measure it, l[i] and l[i] = v read and write it (see Expr.Index).
+ * Indices are whole numbers from 0 to len(l) - 1. Lists are compared by
+ * identity, like instances.
+ *
+ * As long as it only ever held numbers the elements are kept unboxed in
+ * a double[], the first anything else moves them all into an Object[]
+ * for good, so a list never flips back and forth between the two.
+ *
+ * The interpreter checks the index, see visitIndexExpr().
+ */
+public final class LoxList {
+    private static final double[] NO_NUMBERS = new double[0];
+
+    // numbers until something that isn't one comes in, values after
+    private double[] numbers = NO_NUMBERS;
+    private Object[] values = null;
+    private int size = 0;
+
+    public int size(){
+        return size;
+    }
+
+    public Object get(int index){
+        if (values == null)
+            return numbers[index];
+        return values[index];
+    }
+
+    public void set(int index, Object value){
+        if (values == null){
+            if (value instanceof Double){
+                numbers[index] = (double)value;
+                return;
+            }
+            generalize();
+        }
+        values[index] = value;
+    }
+
+    public void add(Object value){
+        if (values == null){
+            if (value instanceof Double){
+                if (size == numbers.length)
+                    numbers = Arrays.copyOf(numbers, grow(size));
+                numbers[size++] = (double)value;
+                return;
+            }
+            generalize();
+        }
+        if (size == values.length)
+            values = Arrays.copyOf(values, grow(size));
+        values[size++] = value;
+    }
+
+    private static int grow(int size){
+        return Math.max(8, size * 2);
+    }
+
+    private void generalize(){
+        values = new Object[Math.max(numbers.length, 8)];
+        for (int i = 0; i < size; ++i)
+            values[i] = numbers[i];
+        numbers = null;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder text = new StringBuilder();
+        append(text, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return text.toString();
+    }
+
+    // printing is the list being printed and the ones it is inside of, a
+    // list that holds one of them (itself or one further out) shows it as [...]
+    private void append(StringBuilder text, Set<LoxList> printing){
+        if (!printing.add(this)){
+            text.append("[...]");
+            return;
+        }
+        text.append("[");
+        for (int i = 0; i < size; ++i){
+            if (i > 0)
+                text.append(", ");
+            Object element = get(i);
+            if (element instanceof LoxList)
+                ((LoxList)element).append(text, printing);
+            else
+                text.append(Interpreter.stringify(element));
+        }
+        text.append("]");
+        printing.remove(this);
+    }
+}
@@ -0,0 +1,101 @@
+package lox;
+
+/*
+ * What '+' on two strings gives once the result is long enough to be
+ * worth it. With plain Strings every s = s + piece copies everything
+ * built so far, so building a string in a loop is quadratic.
+ *
+ * A LoxString is a prefix of a StringBuilder it may share with the
+ * strings it was made from. Appending to the newest of them (the one
+ * that is the whole builder) appends to the builder in place, the older
+ * ones still only see their own prefix, which never changes. Appending
+ * to an older one or in front of one copies into a new builder, as a
+ * String would. The characters become a String only when the value is
+ * printed, compared or hashed, and that String is kept.
+ *
+ * Both kinds are Lox strings: anything looking at a value's type checks
+ * isString(), and a String equals a LoxString with the same characters
+ * (see BinaryNode.isEqual()).
+ */
+public final class LoxString implements CharSequence {
+    // shorter results are plain Strings, most strings never get here
+    static final int MIN_LENGTH = 64;
+
+    private final StringBuilder buffer;
+    private final int length;
+    private String flat = null;
+
+    private LoxString(StringBuilder buffer, int length){
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    public static boolean isString(Object value){
+        return value instanceof String || value instanceof LoxString;
+    }
+
+    /* left and right are both isString() */
+    public static Object concat(Object left, Object right){
+        int length = ((CharSequence)left).length() + ((CharSequence)right).length();
+        // neither is a LoxString then, those are longer than this
+        if (length < MIN_LENGTH)
+            return (String)left + (String)right;
+
+        if (left instanceof LoxString){
+            LoxString prefix = (LoxString)left;
+            if (prefix.length == prefix.buffer.length()){
+                append(prefix.buffer, right);
+                return new LoxString(prefix.buffer, length);
+            }
+        }
+        StringBuilder buffer = new StringBuilder(length);
+        append(buffer, left);
+        append(buffer, right);
+        return new LoxString(buffer, length);
+    }
+
+    private static void append(StringBuilder buffer, Object value){
+        if (value instanceof LoxString && ((LoxString)value).buffer != buffer)
+            buffer.append(((LoxString)value).buffer, 0, ((LoxString)value).length);
+        else
+            buffer.append(value.toString());
+    }
+
+    @Override
+    public int length(){
+        return length;
+    }
+
+    @Override
+    public char charAt(int index){
+        if (index >= length)
+            throw new IndexOutOfBoundsException(index);
+        return buffer.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return toString().subSequence(start, end);
+    }
+
+    @Override
+    public String toString(){
+        if (flat == null)
+            flat = buffer.substring(0, length);
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object other){
+        if (other == this)
+            return true;
+        if (!isString(other) || ((CharSequence)other).length() != length)
+            return false;
+        return toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode(){
+        return toString().hashCode();
+    }
+}
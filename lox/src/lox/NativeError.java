@@ -0,0 +1,14 @@
+package lox;
+
+/*
+ * A native function was called with arguments it can't take. Natives
+ * have no token to point at, the Interpreter turns this into a
+ * RuntimeError at the call.
+ */
+class NativeError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    NativeError(String message){
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,381 @@
+package lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Constant folding and dead branch elimination, run on the resolved tree
+ * (see Lox.compile), so the interpreter gets the result and the AST cache
+ * stores it.
+ *
+ *  - arithmetic, comparisons, string concatenation, '!' and unary '-' on
+ *    literals become a literal. Folding goes through BinaryNode.generic(),
+ *    the same code the interpreter would run, and anything that would be a
+ *    runtime error ("a" - 1) is left for the interpreter to report.
+ *  - 'and'/'or' with a literal on the left become one of their operands.
+ *  - groupings are dropped, they only exist for the parser.
+ *  - 'if' on a literal becomes the branch taken, 'while' on a falsy
+ *    literal goes away.
+ *  - expression statements that can't do anything (a literal, a local,
+ *    'this', left over after folding) are dropped.
+ *
+ * Nodes are rebuilt bottom up only where something changed, whatever the
+ * resolver filled in is copied over. Declarations are never removed: a
+ * branch or loop body can be a bare 'fn' and even when it never runs its
+ * name is in scope (nil) for the rest of the block, so such a statement
+ * is kept as it is. Slot numbers and Block.locals stay valid that way.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    List<Stmt> optimize(List<Stmt> stmts){
+        return statements(stmts);
+    }
+
+    private Expr optimize(Expr expr){
+        return expr == null ? null : expr.accept(this);
+    }
+
+    /* null if nothing is left of the statement */
+    private Stmt optimize(Stmt stmt){
+        Stmt result = stmt.accept(this);
+        if (result != null && result != stmt)
+            result.line = stmt.line;
+        return result;
+    }
+
+    /* where a statement is required, nothing becomes an empty block */
+    private Stmt required(Stmt stmt){
+        Stmt result = optimize(stmt);
+        if (result == null){
+            Stmt.Block block = new Stmt.Block(new ArrayList<>());
+            block.elided = true;
+            block.line = stmt.line;
+            result = block;
+        }
+        return result;
+    }
+
+    private List<Stmt> statements(List<Stmt> stmts){
+        List<Stmt> result = null;
+        for (int i = 0; i < stmts.size(); ++i){
+            Stmt stmt = stmts.get(i);
+            Stmt optimized = optimize(stmt);
+            if (optimized != stmt && result == null)
+                result = new ArrayList<>(stmts.subList(0, i));
+            if (result != null && optimized != null)
+                result.add(optimized);
+        }
+        return result != null ? result : stmts;
+    }
+
+    private List<Expr> expressions(List<Expr> exprs){
+        List<Expr> result = null;
+        for (int i = 0; i < exprs.size(); ++i){
+            Expr expr = exprs.get(i);
+            Expr optimized = optimize(expr);
+            if (optimized != expr && result == null)
+                result = new ArrayList<>(exprs.subList(0, i));
+            if (result != null)
+                result.add(optimized);
+        }
+        return result != null ? result : exprs;
+    }
+
+    private static boolean isTruthy(Object value){
+        if (value == null) return false;
+        if (value instanceof Boolean) return (boolean)value;
+        return true;
+    }
+
+    private static boolean isDeclaration(Stmt stmt){
+        return stmt instanceof Stmt.Var || stmt instanceof Stmt.Function
+               || stmt instanceof Stmt.Class;
+    }
+
+    /* an expression statement of this can go, evaluating it has no effect */
+    private static boolean isPure(Expr expr){
+        return expr instanceof Expr.Literal
+               || expr instanceof Expr.This
+               || expr instanceof Expr.Variable && ((Expr.Variable)expr).depth != -1;
+    }
+
+    /* expressions */
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr){
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal){
+            try {
+                Object value = BinaryNode.generic(expr.operator, ((Expr.Literal)left).value,
+                                                  ((Expr.Literal)right).value);
+                // a literal string is always a plain String (see AstCache)
+                if (value instanceof LoxString)
+                    value = value.toString();
+                return new Expr.Literal(value);
+            } catch (RuntimeError error){
+                // left as it is, it fails when (and if) it runs
+            }
+        }
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr){
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr){
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal){
+            Object value = ((Expr.Literal)right).value;
+            if (expr.operator.type == TokenType.EXCLAM)
+                return new Expr.Literal(!isTruthy(value));
+            if (expr.operator.type == TokenType.MINUS && value instanceof Double)
+                return new Expr.Literal(-(double)value);
+        }
+        if (right == expr.right)
+            return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignmentExpr(Expr.Assignment expr){
+        Expr value = optimize(expr.expression);
+        if (value == expr.expression)
+            return expr;
+        Expr.Assignment result = new Expr.Assignment(expr.identifier, value);
+        result.depth = expr.depth;
+        result.slot = expr.slot;
+        return result;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr){
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal){
+            boolean truthy = isTruthy(((Expr.Literal)left).value);
+            // the value of the left operand if it decides, else the right one
+            if (expr.operator.type == TokenType.AND)
+                return truthy ? right : left;
+            if (expr.operator.type == TokenType.OR)
+                return truthy ? left : right;
+        }
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitPostOpExpr(Expr.PostOp expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitPreOpExpr(Expr.PreOp expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr){
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = expressions(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments)
+            return expr;
+        Expr.Call result = new Expr.Call(callee, expr.paren, arguments);
+        result.tail = expr.tail;
+        return result;
+    }
+
+    @Override
+    public Expr visitInvokeExpr(Expr.Invoke expr){
+        Expr object = optimize(expr.object);
+        List<Expr> arguments = expressions(expr.arguments);
+        if (object == expr.object && arguments == expr.arguments)
+            return expr;
+        Expr.Invoke result = new Expr.Invoke(object, expr.name, expr.paren, arguments);
+        result.tail = expr.tail;
+        return result;
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr){
+        Expr object = optimize(expr.object);
+        if (object == expr.object)
+            return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr){
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value)
+            return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitIndexExpr(Expr.Index expr){
+        Expr object = optimize(expr.object);
+        Expr index = optimize(expr.index);
+        if (object == expr.object && index == expr.index)
+            return expr;
+        return new Expr.Index(object, expr.bracket, index);
+    }
+
+    @Override
+    public Expr visitSetIndexExpr(Expr.SetIndex expr){
+        Expr object = optimize(expr.object);
+        Expr index = optimize(expr.index);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && index == expr.index && value == expr.value)
+            return expr;
+        return new Expr.SetIndex(object, expr.bracket, index, value);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr){
+        return expr;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr){
+        return expr;
+    }
+
+    /* statements */
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt){
+        Expr expr = optimize(stmt.expression);
+        if (isPure(expr))
+            return null;
+        if (expr == stmt.expression)
+            return stmt;
+        return new Stmt.Expression(expr);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt){
+        Expr expr = optimize(stmt.expression);
+        if (expr == stmt.expression)
+            return stmt;
+        return new Stmt.Print(expr);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt){
+        Expr expr = optimize(stmt.expression);
+        if (expr == stmt.expression)
+            return stmt;
+        Stmt.Var result = new Stmt.Var(stmt.identifier, expr);
+        result.slot = stmt.slot;
+        result.captured = stmt.captured;
+        return result;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt){
+        List<Stmt> stmts = statements(stmt.statements);
+        if (stmts == stmt.statements)
+            return stmt;
+        Stmt.Block result = new Stmt.Block(stmts);
+        result.locals = stmt.locals;
+        result.elided = stmt.elided;
+        result.resets = stmt.resets;
+        return result;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt){
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal){
+            boolean truthy = isTruthy(((Expr.Literal)condition).value);
+            Stmt dead = truthy ? stmt.elseBranch : stmt.thenBranch;
+            if (dead == null || !isDeclaration(dead)){
+                Stmt taken = truthy ? stmt.thenBranch : stmt.elseBranch;
+                return taken != null ? optimize(taken) : null;
+            }
+        }
+        Stmt thenBranch = required(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch != null ? required(stmt.elseBranch) : null;
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+            && elseBranch == stmt.elseBranch)
+            return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt){
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal && !isTruthy(((Expr.Literal)condition).value)
+            && !isDeclaration(stmt.body))
+            return null;
+        Stmt body = required(stmt.body);
+        if (condition == stmt.condition && body == stmt.body)
+            return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt){
+        List<Stmt> body = statements(stmt.body);
+        if (body == stmt.body)
+            return stmt;
+        return function(stmt, body);
+    }
+
+    private static Stmt.Function function(Stmt.Function stmt, List<Stmt> body){
+        Stmt.Function result = new Stmt.Function(stmt.name, stmt.params, body);
+        result.line = stmt.line;
+        result.slot = stmt.slot;
+        result.locals = stmt.locals;
+        result.captured = stmt.captured;
+        result.upvalues = stmt.upvalues;
+        result.captures = stmt.captures;
+        return result;
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt){
+        Expr expr = optimize(stmt.expression);
+        if (expr == stmt.expression)
+            return stmt;
+        return new Stmt.Return(stmt.keyword, expr);
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt){
+        List<Stmt.Function> methods = null;
+        for (int i = 0; i < stmt.methods.size(); ++i){
+            Stmt.Function method = stmt.methods.get(i);
+            List<Stmt> body = statements(method.body);
+            if (body != method.body && methods == null)
+                methods = new ArrayList<>(stmt.methods.subList(0, i));
+            if (methods != null)
+                methods.add(body != method.body ? function(method, body) : method);
+        }
+        if (methods == null)
+            return stmt;
+        Stmt.Class result = new Stmt.Class(stmt.name, stmt.superclass, methods);
+        result.slot = stmt.slot;
+        result.captured = stmt.captured;
+        result.superSlot = stmt.superSlot;
+        return result;
+    }
+}
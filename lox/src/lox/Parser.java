@@ -5,7 +5,9 @@ import static lox.TokenType.*;
 import java.beans.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 
 
 /* 
@@ -19,16 +21,29 @@ public class Parser {
 
     private static class ParseError extends RuntimeException {}
 
-    private final List<Token> tokens;
-    private int current =0;
+    /*
+     * tokens are pulled one at a time (null means there are no more),
+     * the parser never looks further than one token ahead or one back
+     * so that is all it keeps
+     */
+    private final Supplier<Token> tokens;
+    private Token previous = null;
+    private Token next;
+
+    public Parser(Scanner scanner){
+        this.tokens = scanner::nextToken;
+        this.next = tokens.get();
+    }
 
     public Parser(List<Token> tokens){
-        this.tokens = tokens;
+        Iterator<Token> it = tokens.iterator();
+        this.tokens = () -> it.hasNext() ? it.next() : null;
+        this.next = this.tokens.get();
     }
 
     //program : statements* EOF, parse is basically
     //program in the grammar
-    List<Stmt> parse(){
+    public List<Stmt> parse(){
         List<Stmt> stmts = new ArrayList<>();
         while (!isAtEnd()){
             stmts.add( declaration() );
@@ -43,7 +58,7 @@ public class Parser {
     }
 
     private Boolean match(TokenType... types){
-        if (current >= tokens.size())
+        if (isAtEnd())
             return false;
         
         for (TokenType type : types){
@@ -57,22 +72,25 @@ public class Parser {
     }
 
     private Boolean isAtEnd(){
-        return current >= tokens.size();
+        return next == null;
     }
 
     private Token advance(){
-        if (!isAtEnd()) current++;
+        if (!isAtEnd()){
+            previous = next;
+            next = tokens.get();
+        }
         return previous();
     }
 
     private Token previous(){
-        return tokens.get(current-1);
+        return previous;
     }
 
     private Token peek(){
         // System.out.println("FAILING HERE");
         if (isAtEnd()) return previous();
-        return tokens.get(current);
+        return next;
     }
 
     private Boolean check(TokenType type){
@@ -92,24 +110,34 @@ public class Parser {
         }
     }
     Stmt statement(){
+        int line = peek().line;
+        Stmt stmt;
         if (match(PRINT))
-            return printStatement();
+            stmt = printStatement();
         else if (match(LEFT_BRACE))
-            return blockStatement();
+            stmt = blockStatement();
         else if (match(IF))
-            return ifStatement();
+            stmt = ifStatement();
         else if (match(WHILE))
-            return whileStatement();
+            stmt = whileStatement();
         else if (match(FN))
-            return functionStatement("function");
+            stmt = functionStatement("function");
         else if (match(RETURN))
-            return returnStatement();
+            stmt = returnStatement();
         else if (match(FOR))
-            return forStatement();
+            stmt = forStatement();
         else if (match(CLASS))
-            return classStatement();
+            stmt = classStatement();
         else
-            return expressionStatement();
+            stmt = expressionStatement();
+        stmt.line = line;
+        return stmt;
+    }
+
+    // for the statements made up by the parser (desugared for loops)
+    private static Stmt at(int line, Stmt stmt){
+        stmt.line = line;
+        return stmt;
     }
 
     private Stmt printStatement(){
@@ -133,7 +161,9 @@ public class Parser {
         consume(LEFT_BRACE, "Expected '{' for " + type + " body");
         List<Stmt> stmts = block();
 
-        return new Stmt.Function(name, params, stmts);
+        Stmt.Function function = new Stmt.Function(name, params, stmts);
+        function.line = name.line;
+        return function;
     }
 
     private Stmt returnStatement(){
@@ -178,6 +208,7 @@ public class Parser {
     }
 
     private Stmt forStatement(){
+        int line = previous().line;
         consume(LEFT_PAREN, "Expected '(' after for");
         Stmt initExpr;
 
@@ -203,24 +234,24 @@ public class Parser {
         Stmt body = statement();
 
         if (incExpr != null)
-            body = new Stmt.Block(
+            body = at(line, new Stmt.Block(
                                 Arrays.asList(
                                     body,
-                                    new Stmt.Expression(incExpr)
+                                    at(line, new Stmt.Expression(incExpr))
                                 )
-                            );
+                            ));
 
         if (condition == null) condition = new Expr.Literal(true);
 
-        body = new Stmt.While(condition, body);
+        body = at(line, new Stmt.While(condition, body));
 
         if (initExpr != null)
-            body = new Stmt.Block(
+            body = at(line, new Stmt.Block(
                 Arrays.asList(
                     initExpr,
                     body
                 )
-            );
+            ));
 
         return body;
     }
@@ -272,6 +303,7 @@ public class Parser {
     }
 
     private Stmt varStatement(){
+        int line = previous().line;
         Token varName = consume(IDENTIFIER, "Expected identifier");
         
         Expr expr = null;
@@ -279,129 +311,245 @@ public class Parser {
             expr = expression();
 
         consume(SEMI_COLON, "Expected ; after declaration");
-        return new Stmt.Var(varName, expr);
+        return at(line, new Stmt.Var(varName, expr));
     }
 
     private Stmt expressionStatement(){
+        int line = peek().line;
         Expr expr = expression();
         consume(SEMI_COLON, "Expected ; after statement");
-        return new Stmt.Expression(expr);
+        return at(line, new Stmt.Expression(expr));
     }
     
-    private Expr expression(){
-        return assignment();
+    /*
+     * Expressions are parsed Pratt style (same idea as clox's compiler):
+     * every token type gets a row in the tables below saying how to parse
+     * it when it starts an expression (prefix), when it follows one
+     * (infix) and how tightly that infix binds.
+     *
+     * Parentheses, prefix operators and the binary, logical and
+     * assignment operators don't recurse, parsePrecedence() keeps what is
+     * still open on an explicit stack (see Pending). So ((((x)))),
+     * - - - x or 1+(1+(1+...)) can nest as deep as memory allows. What
+     * is left to the rules recurses: call arguments and index
+     * expressions.
+     *
+     *  assignment is right associative, everything else binds left
+     */
+    private enum Precedence {
+        NONE, ASSIGNMENT, OR, AND, EQUALITY, COMPARISON, TERM, FACTOR, UNARY, CALL;
+
+        Precedence next(){
+            return values()[ordinal() + 1];
+        }
     }
 
-    private Expr assignment(){
-        Expr lvalue = or();
-        if (match(EQUAL)){
-            Token equals = previous();
-            Expr rvalue = assignment();
+    private interface PrefixRule {
+        Expr parse(Parser parser, Token token);
+    }
+
+    private interface InfixRule {
+        Expr parse(Parser parser, Expr left, Token operator);
+    }
+
+    private static final PrefixRule[] prefixRules = new PrefixRule[TokenType.values().length];
+    private static final InfixRule[] infixRules = new InfixRule[TokenType.values().length];
+    private static final Precedence[] precedences = new Precedence[TokenType.values().length];
+
+    static {
+        Arrays.fill(precedences, Precedence.NONE);
+
+        prefix(Parser::literal, FALSE, TRUE, NIL, NUMBER, STRING);
+        prefix(Parser::variable, IDENTIFIER);
+        prefix((p, t) -> new Expr.This(t), THIS);
+        prefix(Parser::superExpr, SUPER);
+        prefix(Parser::preOp, PLUS_PLUS, MINUS_MINUS);
+        // handled by parsePrecedence() itself, the entries only mark
+        // them as tokens that can start an expression
+        prefix(null, LEFT_PAREN, EXCLAM, MINUS);
+
+        infix(Precedence.ASSIGNMENT, null, EQUAL);
+        infix(Precedence.OR, null, OR);
+        infix(Precedence.AND, null, AND);
+        infix(Precedence.EQUALITY, null, EXCLAM_EQUAL, EQUAL_EQUAL);
+        infix(Precedence.COMPARISON, null, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL);
+        infix(Precedence.TERM, null, MINUS, PLUS);
+        infix(Precedence.FACTOR, null, SLASH, STAR);
+        infix(Precedence.CALL, Parser::call, LEFT_PAREN);
+        infix(Precedence.CALL, Parser::property, DOT);
+        infix(Precedence.CALL, Parser::index, LEFT_BRACKET);
+    }
+
+    private static void prefix(PrefixRule rule, TokenType... types){
+        for (TokenType type : types)
+            prefixRules[type.ordinal()] = rule;
+    }
+
+    private static void infix(Precedence precedence, InfixRule rule, TokenType... types){
+        for (TokenType type : types){
+            infixRules[type.ordinal()] = rule;
+            precedences[type.ordinal()] = precedence;
+        }
+    }
+
+    /*
+     * something parsePrecedence() has started but not finished: an open
+     * '(', a prefix operator or a binary operator (with its left
+     * operand) waiting for the operand that follows. precedence is what
+     * the expression it ends up in continues at once it is done.
+     */
+    private static final class Pending {
+        final Token operator;
+        final Expr left;
+        final Precedence precedence;
+        final Pending below;
+
+        Pending(Token operator, Expr left, Precedence precedence, Pending below){
+            this.operator = operator;
+            this.left = left;
+            this.precedence = precedence;
+            this.below = below;
+        }
+    }
+
+    private Expr expression(){
+        return parsePrecedence(Precedence.ASSIGNMENT);
+    }
 
-            if (lvalue instanceof Expr.Variable){
-                return new Expr.Assignment(((Expr.Variable)(lvalue)).name, 
-                                            rvalue);
+    // parses anything that binds at least as tightly as 'precedence'
+    private Expr parsePrecedence(Precedence precedence){
+        Pending pending = null;
+        for (;;){
+            // prefix: open parens and prefix operators stack up until
+            // something that starts an operand
+            Token token = peek();
+            while (!isAtEnd() && (token.type == LEFT_PAREN || token.type == EXCLAM || token.type == MINUS)){
+                advance();
+                pending = new Pending(token, null, precedence, pending);
+                precedence = token.type == LEFT_PAREN ? Precedence.ASSIGNMENT : Precedence.UNARY;
+                token = peek();
             }
 
-            else if (lvalue instanceof Expr.Get){
-                Expr.Get lexpr = (Expr.Get)lvalue;
-                return new Expr.Set(lexpr.object, lexpr.name, rvalue);
+            PrefixRule prefix = isAtEnd() ? null : prefixRules[token.type.ordinal()];
+            if (prefix == null)
+                throw error(token, "Expected expression");
+            Expr expr = prefix.parse(this, advance());
+
+            // infix: everything binding tightly enough, an operator that
+            // needs a right operand goes on the stack and the loop starts
+            // over with that operand
+            for (;;){
+                while (!isAtEnd() && precedence.compareTo(precedences[peek().type.ordinal()]) <= 0){
+                    Token operator = advance();
+                    InfixRule infix = infixRules[operator.type.ordinal()];
+                    if (infix != null){
+                        expr = infix.parse(this, expr, operator);
+                        continue;
+                    }
+                    pending = new Pending(operator, expr, precedence, pending);
+                    precedence = operator.type == EQUAL ? Precedence.ASSIGNMENT
+                                                        : precedences[operator.type.ordinal()].next();
+                    expr = null;
+                    break;
+                }
+                if (expr == null)
+                    break;
+                if (pending == null)
+                    return expr;
+
+                precedence = pending.precedence;
+                expr = finish(pending, expr);
+                pending = pending.below;
             }
-            else 
-                throw error(equals, "Assignment target is not a variable");
         }
+    }
 
-        return lvalue;
+    private Expr finish(Pending pending, Expr operand){
+        Token operator = pending.operator;
+        switch (operator.type){
+            case LEFT_PAREN:
+                consume(RIGHT_PAREN, "Expected ')' after expression");
+                // ((x)) means no more than (x), one Grouping keeps the
+                // tree no deeper than the expressions in the parens
+                return operand instanceof Expr.Grouping ? operand : new Expr.Grouping(operand);
+            case EXCLAM:
+            case MINUS:
+                if (pending.left == null)
+                    return new Expr.Unary(operator, operand);
+                return new Expr.Binary(pending.left, operator, operand);
+            case EQUAL:
+                return assignment(pending.left, operator, operand);
+            case OR:
+            case AND:
+                return new Expr.Logical(pending.left, operator, operand);
+            default:
+                return new Expr.Binary(pending.left, operator, operand);
+        }
     }
 
-    private Expr or(){
-        Expr expr = and();
-        while (match(OR)){
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
+    private Expr literal(Token token){
+        switch (token.type){
+            case FALSE: return new Expr.Literal(false);
+            case TRUE:  return new Expr.Literal(true);
+            case NIL:   return new Expr.Literal(null);
+            default:    return new Expr.Literal(token.literal);
         }
-        return expr;
     }
 
-    private Expr and(){
-        Expr expr = equality();
+    private Expr variable(Token id){
+        if (match(PLUS_PLUS, MINUS_MINUS))
+            return new Expr.PostOp(id, previous());
+        return new Expr.Variable(id);
+    }
 
-        while (match(AND)){
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
+    private Expr superExpr(Token keyword){
+        consume(DOT, "Expected '.' after super.");
+        Token method = consume(IDENTIFIER, "Expected method after '.'.");
+        return new Expr.Super(keyword, method);
+    }
 
-        return expr;
+    private Expr preOp(Token op){
+        Token id = consume(IDENTIFIER, "Expected a identifier after '"+op.lexeme+"'");
+        return new Expr.PreOp(id, op);
     }
 
-    private Expr equality(){
-        Expr expr = comparision();
-        while (match(EXCLAM_EQUAL, EQUAL_EQUAL))
-        {
-            Token operator = previous();
-            Expr right = comparision();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr assignment(Expr lvalue, Token equals, Expr rvalue){
+        if (lvalue instanceof Expr.Variable){
+            return new Expr.Assignment(((Expr.Variable)(lvalue)).name, 
+                                        rvalue);
         }
 
-        return expr;
+        else if (lvalue instanceof Expr.Get){
+            Expr.Get lexpr = (Expr.Get)lvalue;
+            return new Expr.Set(lexpr.object, lexpr.name, rvalue);
+        }
+        else if (lvalue instanceof Expr.Index){
+            Expr.Index lexpr = (Expr.Index)lvalue;
+            return new Expr.SetIndex(lexpr.object, lexpr.bracket, lexpr.index, rvalue);
+        }
+        else 
+            throw error(equals, "Assignment target is not a variable");
     }
 
-    private Expr comparision(){
-        Expr expr = term();
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL))
-        {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr call(Expr callee, Token leftParen){
+        List<Expr> args = arguments();
+        Token paren = consume(RIGHT_PAREN, "Expected ')' at the end of function call");
+        if (callee instanceof Expr.Get){
+            Expr.Get get = (Expr.Get)callee;
+            return new Expr.Invoke(get.object, get.name, paren, args);
         }
-        return expr;
+        return new Expr.Call(callee, paren, args);
     }
 
-    private Expr term(){
-        Expr expr = factor();
-        while (match(MINUS, PLUS))
-        {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
+    private Expr property(Expr object, Token dot){
+        Token name = consume(IDENTIFIER, "Expected property name after '.'");
+        return new Expr.Get(object, name);
     }
 
-    private Expr factor(){
-        Expr expr = unary();
-        while (match(SLASH, STAR))
-        {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-        return expr;
-    }
-
-    private Expr unary() {
-        if (match(EXCLAM, MINUS))
-            return new Expr.Unary(previous(), unary());
-        return call();
-    }
-
-    private Expr call(){
-        Expr expr = primary();
-        while (true){
-            if (match(LEFT_PAREN)){
-                List<Expr> args = arguments();
-                Token paren = consume(RIGHT_PAREN, "Expected ')' at the end of function call");
-                expr = new Expr.Call(expr, paren, args);
-            } else if (match(DOT)){
-                Token name = consume(IDENTIFIER, "Expected property name after '.'");
-                expr = new Expr.Get(expr, name);
-            } else {
-                break;
-            }
-        }
-        return expr;
+    private Expr index(Expr object, Token leftBracket){
+        Expr index = expression();
+        Token bracket = consume(RIGHT_BRACKET, "Expected ']' after index");
+        return new Expr.Index(object, bracket, index);
     }
 
     private List<Expr> arguments(){
@@ -417,50 +565,6 @@ public class Parser {
         return args;
     }
 
-    private Expr primary(){
-        // if (match(NUMBER, STRING, TRUE, FALSE, 
-                //   NIL))
-            // return new Expr.Literal(previous().lexeme);
-        if (match(FALSE)) return new Expr.Literal(false);
-        if (match(TRUE)) return new Expr.Literal(true);
-        if (match(NIL)) return new Expr.Literal(null);
-
-
-        if (match(NUMBER, STRING))
-            return new Expr.Literal(previous().literal);
-
-        if (match(THIS)) return new Expr.This(previous());
-
-        if (match(SUPER)){
-            Token keyword = previous();
-            consume(DOT, "Expected '.' after super.");
-            Token method = consume(IDENTIFIER, "Expected method after '.'.");
-            return new Expr.Super(keyword, method);
-        }
-
-        if (match(IDENTIFIER)){
-            Token id = previous();
-            if (match(PLUS_PLUS, MINUS_MINUS))
-                return new Expr.PostOp(id, previous());
-            return new Expr.Variable(id);
-        }
-
-        if (match(PLUS_PLUS, MINUS_MINUS)){
-            Token op = previous();
-            Token id = consume(IDENTIFIER, "Expected a identifier after '"+op.lexeme+"'");
-            return new Expr.PreOp(id, op);
-        }
-            
-
-        if (match(LEFT_PAREN)){
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expected ')' after expression");
-            return new Expr.Grouping(expr);
-        }
-
-        throw error(peek(), "Expected expression");
-    }
-
     private Token consume(TokenType type, String message){
         if (check(type)) return advance();
 
@@ -0,0 +1,216 @@
+package lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * jlox --profile, for the tree walker
+ *
+ * Two halves:
+ *  - instrumenting: LoxFunction.run() enters and exits every call here,
+ *    which keeps a Lox shadow stack and exact call counts (a tail call
+ *    swaps the top frame). No clock is read per call, System.nanoTime()
+ *    alone would cost about as much as a small Lox call.
+ *  - sampling: a daemon thread wakes up every SAMPLE_INTERVAL and looks
+ *    at the shadow stack (no java stack traces, no safepoints). Each
+ *    sample becomes a folded stack line for flame graphs, counts as self
+ *    time for the function on top and as inclusive time for every
+ *    function on the stack (once, however deep it recurses), and counts
+ *    towards the line of the statement the top frame is running
+ *    (Interpreter.execute() keeps that current).
+ *
+ * The sampler reads the stack while the interpreter changes it, without
+ * any locking. A sample taken in the middle of a call or return can be
+ * off by a frame, which is noise at this sample rate and keeps the
+ * interpreter side down to plain stores.
+ *
+ * When --profile is off Interpreter.profiler is null, which costs a null
+ * check per call and per statement.
+ */
+final class Profiler {
+    private static final long SAMPLE_INTERVAL = 1_000_000; // ns
+    private static final String SCRIPT = "<script>";
+
+    private static final class Function {
+        final String name;
+        // calls from the interpreter thread, the rest from the sampler
+        long calls;
+        int inclusive, self;
+        // the last sample that counted towards inclusive, so recursion counts once
+        int sampled = -1;
+
+        Function(String name){
+            this.name = name;
+        }
+    }
+
+    private static final class Frame {
+        Function function;
+        // of the statement running, an int so the per statement store has no GC barrier
+        int line;
+    }
+
+    private final Map<Stmt.Function, Function> functions = new IdentityHashMap<>();
+    private final Function script = new Function(SCRIPT);
+    private Frame[] stack = new Frame[64];
+    private int depth = 0;
+    private Frame top;
+    private Stmt.Function lastDeclaration;
+    private Function lastFunction;
+
+    // written by the sampler thread only, read after it stopped
+    private final Map<String, Integer> stacks = new HashMap<>();
+    private final Map<Integer, Integer> lines = new HashMap<>();
+    private int samples = 0;
+
+    private final Thread sampler;
+    private volatile boolean running = true;
+    private final long begin;
+
+    Profiler(){
+        for (int i = 0; i < stack.length; ++i)
+            stack[i] = new Frame();
+        begin = System.nanoTime();
+        push(script);
+
+        sampler = new Thread(this::sampleLoop, "lox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /* instrumenting, on the interpreter thread */
+
+    void enter(Stmt.Function declaration){
+        // recursion and loops mostly call what they called last time
+        Function function = declaration == lastDeclaration ? lastFunction : functions.get(declaration);
+        if (function == null){
+            function = new Function(declaration.name.lexeme + ":" + declaration.line);
+            functions.put(declaration, function);
+        }
+        lastDeclaration = declaration;
+        lastFunction = function;
+        push(function);
+    }
+
+    private void push(Function function){
+        if (depth == stack.length){
+            Frame[] grown = Arrays.copyOf(stack, depth * 2);
+            for (int i = depth; i < grown.length; ++i)
+                grown[i] = new Frame();
+            stack = grown;
+        }
+        Frame frame = stack[depth];
+        frame.function = function;
+        frame.line = top != null ? top.line : 0;
+        function.calls++;
+        top = frame;
+        depth++;
+    }
+
+    void exit(){
+        depth--;
+        top = stack[depth - 1];
+    }
+
+    void statement(Stmt stmt){
+        top.line = stmt.line;
+    }
+
+    /* sampling, on the profiler thread */
+
+    private void sampleLoop(){
+        StringBuilder folded = new StringBuilder();
+        while (running){
+            LockSupport.parkNanos(SAMPLE_INTERVAL);
+            if (!running) break;
+
+            Frame[] stack = this.stack;
+            int depth = Math.min(this.depth, stack.length);
+            if (depth == 0) continue;
+
+            folded.setLength(0);
+            Function function = null;
+            for (int i = 0; i < depth && stack[i].function != null; ++i){
+                function = stack[i].function;
+                if (i > 0) folded.append(';');
+                folded.append(function.name);
+                if (function.sampled != samples){
+                    function.sampled = samples;
+                    function.inclusive++;
+                }
+            }
+            function.self++;
+            stacks.merge(folded.toString(), 1, Integer::sum);
+
+            int line = stack[depth - 1].line;
+            if (line > 0)
+                lines.merge(line, 1, Integer::sum);
+            samples++;
+        }
+    }
+
+    /*
+     * stops sampling and writes <prefix>.folded and <prefix>.txt
+     */
+    void finish(Path prefix) throws IOException {
+        running = false;
+        LockSupport.unpark(sampler);
+        try {
+            sampler.join();
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        long total = System.nanoTime() - begin;
+
+        Path foldedFile = prefix.resolveSibling(prefix.getFileName() + ".folded");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(foldedFile))){
+            for (Map.Entry<String, Integer> entry : new TreeMap<>(stacks).entrySet())
+                out.println(entry.getKey() + " " + entry.getValue());
+        }
+
+        Path summaryFile = prefix.resolveSibling(prefix.getFileName() + ".txt");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(summaryFile))){
+            summary(out, total);
+        }
+        System.err.println("profile written to " + summaryFile + " and " + foldedFile);
+    }
+
+    private void summary(PrintWriter out, long total){
+        out.printf("total %.1f ms, %d samples every %d us%n%n",
+                   total / 1e6, samples, SAMPLE_INTERVAL / 1000);
+
+        List<Function> sorted = new ArrayList<>(functions.values());
+        sorted.add(script);
+        sorted.sort((a, b) -> b.self != a.self ? b.self - a.self : Long.compare(b.calls, a.calls));
+
+        // times are estimated from the samples
+        double perSample = SAMPLE_INTERVAL / 1e6;
+        int all = Math.max(samples, 1);
+        out.printf("%-30s %12s %14s %14s %7s%n", "function", "calls", "inclusive ms", "self ms", "self %");
+        for (Function function : sorted){
+            out.printf("%-30s %12d %14.1f %14.1f %6.1f%%%n",
+                       function.name, function.calls,
+                       function.inclusive * perSample, function.self * perSample,
+                       100.0 * function.self / all);
+        }
+
+        List<Map.Entry<Integer, Integer>> hot = new ArrayList<>(lines.entrySet());
+        hot.sort((a, b) -> b.getValue() - a.getValue());
+
+        out.printf("%n%-10s %10s %7s%n", "line", "samples", "%");
+        for (Map.Entry<Integer, Integer> entry : hot){
+            out.printf("%-10d %10d %6.1f%%%n", entry.getKey(), entry.getValue(),
+                       100.0 * entry.getValue() / all);
+        }
+    }
+}
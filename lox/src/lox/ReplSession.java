@@ -0,0 +1,85 @@
+package lox;
+
+import java.util.List;
+
+/*
+ * One interactive session, what runPrompt() feeds its lines to.
+ *
+ * What carries over from one input to the next are the interpreter's
+ * globals. Each input is resolved on its own: names at the top level are
+ * globals, looked up when they run, so there is nothing about them for
+ * the resolver to keep. Input is only run once it is complete:
+ * while a string, a '(' or a '{' is still open the lines are buffered,
+ * so functions and classes can be typed over several lines. An empty
+ * line runs whatever is buffered (and shows the errors) if it never
+ * balances out.
+ *
+ * Nothing is kept per input once it has run. Resolution lives in the
+ * nodes themselves, so the trees of statements that ran are collected
+ * once no function or class declared by them is reachable from the
+ * globals any more, and the interpreter drops its last return value and
+ * tail call arguments when interpret() is done.
+ */
+public class ReplSession {
+    private final StringBuilder pending = new StringBuilder();
+
+    /* true while an unfinished statement is buffered */
+    public boolean isContinuing(){
+        return pending.length() > 0;
+    }
+
+    public void feed(String line){
+        if (pending.length() > 0)
+            pending.append('\n');
+        pending.append(line);
+
+        Balance balance = balance(pending);
+        if (balance == Balance.OPEN || balance == Balance.OPEN_BRACKETS && !line.isBlank())
+            return;
+
+        String source = pending.toString();
+        pending.setLength(0);
+        run(source);
+    }
+
+    private void run(String source){
+        List<Stmt> stmts = Lox.compile(new Scanner(source));
+        if (stmts != null)
+            Lox.execute(stmts);
+
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+    }
+
+    private static enum Balance {
+        CLOSED,
+        OPEN_BRACKETS,
+        // inside a string, an empty line is part of it
+        OPEN
+    }
+
+    /*
+     * just enough lexing to tell whether the input could go on:
+     * strings (no escapes in lox) and // comments can hide brackets
+     */
+    private static Balance balance(CharSequence source){
+        int depth = 0;
+        boolean inString = false;
+        for (int i = 0; i < source.length(); ++i){
+            char c = source.charAt(i);
+            if (inString){
+                if (c == '"') inString = false;
+            } else if (c == '"'){
+                inString = true;
+            } else if (c == '/' && i + 1 < source.length() && source.charAt(i + 1) == '/'){
+                while (i < source.length() && source.charAt(i) != '\n') ++i;
+            } else if (c == '(' || c == '{' || c == '['){
+                depth++;
+            } else if (c == ')' || c == '}' || c == ']'){
+                depth--;
+            }
+        }
+        if (inString) return Balance.OPEN;
+        return depth > 0 ? Balance.OPEN_BRACKETS : Balance.CLOSED;
+    }
+}
@@ -1,9 +1,9 @@
 package lox;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Stack;
 
 import lox.Expr.Get;
@@ -11,13 +11,18 @@ import lox.Expr.Get;
 public class Resolver implements
     Expr.Visitor<Void>, Stmt.Visitor<Void>
 {
-    private final Interpreter interpreter;
-    private final Stack<HashMap<String, Boolean>> scopes = new Stack<>();
+    // what the depth of a resolved name means, see lookUpVariable() in Interpreter
+    static final int GLOBAL = -1, LOCAL = 0, CELL = 1, UPVALUE = 2;
+
+    private final Stack<HashMap<String, Local>> scopes = new Stack<>();
+    // the frames the scopes run in, see visitBlockStmt()
+    private final Stack<Frame> frames = new Stack<>();
+    // set while resolving a declaration that is an if/while branch
+    private boolean branch = false;
     private FunctionType currentFunction = FunctionType.NONE;
     private ClassType currentClass = ClassType.NONE;
 
-    Resolver(Interpreter interpreter){
-        this.interpreter = interpreter;
+    public Resolver(){
     }
 
     private static enum FunctionType {
@@ -27,23 +32,130 @@ public class Resolver implements
         METHOD
     };
 
+    /*
+     * slots are handed out in declaration order, so a frame
+     * can be a plain array indexed by slot
+     */
+    private static class Local {
+        final int slot;
+        // index in frames of the frame it lives in
+        final int frame;
+        boolean defined = false;
+        // a function further in uses it, so it has to live in a Cell
+        boolean captured = false;
+        // declared as an if/while branch, it may never be
+        boolean conditional = false;
+        // null for params, 'this' and 'super'
+        Stmt declaration = null;
+        // resolved from its own frame, they read the Cell if it is captured
+        final List<Expr> uses = new ArrayList<>();
+
+        Local(int slot, int frame){
+            this.slot = slot;
+            this.frame = frame;
+        }
+    }
+
+    /*
+     * one frame at runtime: a function's, a top level block's or the
+     * one holding 'super' of a top level class. Blocks in it put their
+     * locals after the ones in scope and give the slots back when they
+     * end, so size is the most ever in use at once. upvalues are the
+     * cells a function's closure takes along, as in Stmt.Function.
+     */
+    private static class Frame {
+        int next = 0;
+        int size = 0;
+        final List<Integer> upvalues = new ArrayList<>();
+
+        int upvalue(int encoded){
+            int index = upvalues.indexOf(encoded);
+            if (index == -1){
+                index = upvalues.size();
+                upvalues.add(encoded);
+            }
+            return index;
+        }
+    }
+
     private static enum ClassType {
         NONE,
         CLASS,
         SUBCLASS
     };
 
+    /*
+     * A block is elided and runs in the enclosing frame, its locals get
+     * slots in there. A closure made in it doesn't need the block to
+     * have fresh variables every time it runs: what it captures is a
+     * Cell, and every run of a declaration puts a new one in the slot.
+     * At the top level there is no frame to put them in (that is the
+     * globals), there a block that declares something gets its own.
+     */
     @Override
     public Void visitBlockStmt(Stmt.Block stmt){
-        beginScope();
-        resolve(stmt.statements);
-        endScope();
+        if (!frames.isEmpty()){
+            stmt.elided = true;
+            Frame frame = frames.peek();
+            int next = frame.next;
+            scopes.push(new HashMap<String, Local>());
+            resolve(stmt.statements);
+            stmt.resets = resets(popScope());
+            frame.next = next;
+        } else if (declares(stmt.statements)){
+            beginScope();
+            resolve(stmt.statements);
+            stmt.locals = frames.peek().size;
+            stmt.resets = resets(endScope());
+        } else {
+            stmt.elided = true;
+            resolve(stmt.statements);
+        }
         return null;
     }
 
+    /* whether any of stmts declares a name in the scope they are in */
+    private static boolean declares(List<Stmt> stmts){
+        for (Stmt stmt : stmts)
+            if (declares(stmt)) return true;
+        return false;
+    }
+
+    // if/while bodies are no scopes, a bare 'fn' there is declared in the block
+    private static boolean declares(Stmt stmt){
+        if (stmt instanceof Stmt.Var || stmt instanceof Stmt.Function || stmt instanceof Stmt.Class)
+            return true;
+        if (stmt instanceof Stmt.If)
+            return declares(((Stmt.If)stmt).thenBranch)
+                   || ((Stmt.If)stmt).elseBranch != null && declares(((Stmt.If)stmt).elseBranch);
+        if (stmt instanceof Stmt.While)
+            return declares(((Stmt.While)stmt).body);
+        return false;
+    }
+
+    /*
+     * a declaration in an if/while branch may not run, the slot can
+     * still hold what a previous run (or an earlier block) left there,
+     * so these are set to nil when the block starts
+     */
+    private static int[] resets(Collection<Local> locals){
+        int count = 0;
+        for (Local local : locals)
+            if (local.conditional) count++;
+        if (count == 0)
+            return null;
+
+        int[] resets = new int[count];
+        int i = 0;
+        for (Local local : locals)
+            if (local.conditional)
+                resets[i++] = local.slot << 1 | (local.captured ? 1 : 0);
+        return resets;
+    }
+
     @Override
     public Void visitVarStmt(Stmt.Var stmt){
-        declare(stmt.identifier);
+        stmt.slot = declare(stmt.identifier, stmt);
         if (stmt.expression != null)
             resolve(stmt.expression);
         define(stmt.identifier);
@@ -52,23 +164,23 @@ public class Resolver implements
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr){
-        if (!scopes.isEmpty() && 
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE)
+        if (!scopes.isEmpty() && scopes.peek().containsKey(expr.name.lexeme) &&
+            !scopes.peek().get(expr.name.lexeme).defined)
             Lox.error(expr.name, "Can't read local variable in its own initalizer");
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr, expr.name.lexeme);
         return null;
     }
 
     @Override
     public Void visitAssignmentExpr(Expr.Assignment expr){
         resolve(expr.expression);
-        resolveLocal(expr, expr.identifier);
+        resolveLocal(expr, expr.identifier.lexeme);
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt){
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -84,8 +196,8 @@ public class Resolver implements
     @Override
     public Void visitIfStmt(Stmt.If stmt){
         resolve(stmt.condition);
-        resolve(stmt.thenBranch);
-        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        resolveBranch(stmt.thenBranch);
+        if (stmt.elseBranch != null) resolveBranch(stmt.elseBranch);
         return null;
     }
 
@@ -104,6 +216,7 @@ public class Resolver implements
             if (currentFunction == FunctionType.INITIALIZER)
                 Lox.error(stmt.keyword, "Cannot return a value from initalizer");
             resolve(stmt.expression);
+            markTailCall(stmt.expression);
         }
         return null;
     }
@@ -111,40 +224,61 @@ public class Resolver implements
     @Override
     public Void visitWhileStmt(Stmt.While stmt){
         resolve(stmt.condition);
-        resolve(stmt.body);
+        resolveBranch(stmt.body);
         return null;
     }
 
+    private void resolveBranch(Stmt stmt){
+        branch = stmt instanceof Stmt.Var || stmt instanceof Stmt.Function
+                 || stmt instanceof Stmt.Class;
+        resolve(stmt);
+        branch = false;
+    }
+
     @Override
     public Void visitClassStmt(Stmt.Class stmt){
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
+        /*
+         * 'super' is a local the methods capture. A top level class
+         * has no frame to put it in, it gets one of its own.
+         */
+        boolean superFrame = frames.isEmpty();
+        int next = 0;
         if (stmt.superclass != null){
             if (stmt.name.lexeme.equals(stmt.superclass.name.lexeme))
                 Lox.error(stmt.superclass.name, "A class can not inherit from itself");
             resolve(stmt.superclass);
 
-            beginScope();
-            scopes.peek().put("super", true);
+            if (superFrame){
+                beginScope();
+            } else {
+                next = frames.peek().next;
+                scopes.push(new HashMap<String, Local>());
+            }
+            Local local = declareImplicit("super");
+            local.captured = true;
+            stmt.superSlot = local.slot;
         }
 
         ClassType encClassType = currentClass;
         currentClass = ClassType.CLASS;
         if (stmt.superclass != null)
             currentClass = ClassType.SUBCLASS;
-        beginScope();
-            scopes.peek().put("this", true);
-            for (Stmt.Function method : stmt.methods){
-                FunctionType decl = FunctionType.METHOD;
-                if (method.name.lexeme.equals(LoxClass.constructorName))
-                    decl = FunctionType.INITIALIZER;
-                resolveFunction(method, decl);
-            }
-        endScope();
-        
-        if (stmt.superclass != null)
+        for (Stmt.Function method : stmt.methods){
+            FunctionType decl = FunctionType.METHOD;
+            if (method.name.lexeme.equals(LoxClass.constructorName))
+                decl = FunctionType.INITIALIZER;
+            resolveFunction(method, decl);
+        }
+
+        if (stmt.superclass != null && superFrame){
             endScope();
+        } else if (stmt.superclass != null){
+            popScope();
+            frames.peek().next = next;
+        }
         currentClass = encClassType;
         return null;
     }
@@ -164,12 +298,35 @@ public class Resolver implements
         return null;
     }
 
+    @Override
+    public Void visitInvokeExpr(Expr.Invoke expr){
+        resolve(expr.object);
+        for (Expr arg : expr.arguments)
+            resolve(arg);
+        return null;
+    }
+
     @Override
     public Void visitGetExpr(Get expr) {
         resolve(expr.object);
         return null;
     }
 
+    @Override
+    public Void visitIndexExpr(Expr.Index expr){
+        resolve(expr.object);
+        resolve(expr.index);
+        return null;
+    }
+
+    @Override
+    public Void visitSetIndexExpr(Expr.SetIndex expr){
+        resolve(expr.object);
+        resolve(expr.index);
+        resolve(expr.value);
+        return null;
+    }
+
     @Override
     public Void visitSetExpr(Expr.Set expr){
         resolve(expr.value);
@@ -203,13 +360,13 @@ public class Resolver implements
 
     @Override
     public Void visitPreOpExpr(Expr.PreOp expr){
-        resolveLocal(expr, expr.identifier);
+        resolveLocal(expr, expr.identifier.lexeme);
         return null;
     }
 
     @Override
     public Void visitPostOpExpr(Expr.PostOp expr){
-        resolveLocal(expr, expr.identifier);
+        resolveLocal(expr, expr.identifier.lexeme);
         return null;
     }
 
@@ -217,7 +374,7 @@ public class Resolver implements
     public Void visitThisExpr(Expr.This expr){
         if (currentClass != ClassType.CLASS)
             Lox.error(expr.keyword, "'this' keyword outside of a class");
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, "this");
         return null;
     }
 
@@ -228,49 +385,175 @@ public class Resolver implements
         } else if (currentClass != ClassType.SUBCLASS){
             Lox.error(expr.keyword, "'super' keyword outside of a subclass");
         }
-        resolveLocal(expr, expr.keyword);
+        // the superclass and the instance the method runs on
+        resolveLocal(expr, "super");
+        resolveLocal(expr, "this");
         return null;
     }
 
+    /*
+     * 'return f(...)' inside a function or method: nothing is left to do
+     * in the caller once f returns, so the Interpreter can run f in place
+     * of the caller instead of on top of it (see LoxFunction)
+     */
+    private void markTailCall(Expr expr){
+        if (currentFunction != FunctionType.FUNCTION && currentFunction != FunctionType.METHOD)
+            return;
+        if (expr instanceof Expr.Call)
+            ((Expr.Call)expr).tail = true;
+        else if (expr instanceof Expr.Invoke)
+            ((Expr.Invoke)expr).tail = true;
+    }
+
     private void resolveFunction(Stmt.Function stmt, FunctionType type)
     {
         FunctionType enclosingType = currentFunction;
         currentFunction = type;
         beginScope();
+        // a method's own frame holds 'this' (slot 0), ahead of the params
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER)
+            declareImplicit("this");
         for (Token param : stmt.params){
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(stmt.body);
-        endScope();
+        Frame frame = frames.peek();
+        stmt.locals = frame.size;
+        stmt.captures = captures(endScope());
+        stmt.upvalues = toArray(frame.upvalues);
         currentFunction = enclosingType;
     }
 
-    private void resolveLocal(Expr expr, Token name){
+    /*
+     * the slots a call boxes once the params are in: captured params
+     * and 'this', and captured declarations in if/while branches (see
+     * resets()), those start out as a nil Cell
+     */
+    private static int[] captures(Collection<Local> locals){
+        List<Integer> slots = new ArrayList<>();
+        for (Local local : locals)
+            if (local.captured && (local.declaration == null || local.conditional))
+                slots.add(local.slot);
+        return toArray(slots);
+    }
+
+    private static int[] toArray(List<Integer> list){
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; ++i)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    /*
+     * a local of the current frame is read from its slot, one of an
+     * enclosing frame becomes an upvalue of every function in between
+     * (as in clox), the innermost one's index is what the name resolves to
+     */
+    private void resolveLocal(Expr expr, String name){
         for (int i =scopes.size()-1; i >= 0; i--){
-            if (scopes.get(i).containsKey(name.lexeme)){
-                interpreter.resolve(expr, scopes.size() - i - 1);
+            Local local = scopes.get(i).get(name);
+            if (local != null){
+                int current = frames.size() - 1;
+                if (local.frame == current){
+                    local.uses.add(expr);
+                    setLocal(expr, name, LOCAL, local.slot);
+                } else {
+                    setLocal(expr, name, UPVALUE, upvalue(current, local));
+                }
                 return;
             }
         }
     }
 
-    void resolve(List<Stmt> statements){
+    private int upvalue(int frame, Local local){
+        if (local.frame == frame - 1){
+            local.captured = true;
+            return frames.get(frame).upvalue(local.slot << 1 | 1);
+        }
+        return frames.get(frame).upvalue(upvalue(frame - 1, local) << 1);
+    }
+
+    private void setLocal(Expr expr, String name, int depth, int slot){
+        if (expr instanceof Expr.Variable){
+            ((Expr.Variable)expr).depth = depth;
+            ((Expr.Variable)expr).slot = slot;
+        } else if (expr instanceof Expr.Assignment){
+            ((Expr.Assignment)expr).depth = depth;
+            ((Expr.Assignment)expr).slot = slot;
+        } else if (expr instanceof Expr.PreOp){
+            ((Expr.PreOp)expr).depth = depth;
+            ((Expr.PreOp)expr).slot = slot;
+        } else if (expr instanceof Expr.PostOp){
+            ((Expr.PostOp)expr).depth = depth;
+            ((Expr.PostOp)expr).slot = slot;
+        } else if (expr instanceof Expr.This){
+            ((Expr.This)expr).depth = depth;
+            ((Expr.This)expr).slot = slot;
+        } else if (expr instanceof Expr.Super && name.equals("this")){
+            ((Expr.Super)expr).thisDepth = depth;
+            ((Expr.Super)expr).thisSlot = slot;
+        } else if (expr instanceof Expr.Super){
+            ((Expr.Super)expr).depth = depth;
+            ((Expr.Super)expr).slot = slot;
+        }
+    }
+
+    /* a use from its own frame of a local that turned out to be captured */
+    private static void setCell(Expr expr){
+        if (expr instanceof Expr.Variable)
+            ((Expr.Variable)expr).depth = CELL;
+        else if (expr instanceof Expr.Assignment)
+            ((Expr.Assignment)expr).depth = CELL;
+        else if (expr instanceof Expr.PreOp)
+            ((Expr.PreOp)expr).depth = CELL;
+        else if (expr instanceof Expr.PostOp)
+            ((Expr.PostOp)expr).depth = CELL;
+        else if (expr instanceof Expr.This)
+            ((Expr.This)expr).depth = CELL;
+        else if (expr instanceof Expr.Super)
+            // only ever 'this', 'super' is used from the methods
+            ((Expr.Super)expr).thisDepth = CELL;
+    }
+
+    public void resolve(List<Stmt> statements){
         for (Stmt statement : statements)
             resolve(statement);
     }
 
-    private void declare(Token name){
-        if (scopes.isEmpty()) return;
+    /* returns the slot of the new local, -1 if it is a global */
+    private int declare(Token name, Stmt declaration){
+        boolean conditional = branch;
+        branch = false;
+        if (scopes.isEmpty()) return -1;
         if (scopes.peek().containsKey(name.lexeme))
             Lox.error(name, "redeclaration of variable");
         // Map<String, Boolean> scope = scopes.peek();
-        scopes.peek().put(name.lexeme, false);
+        Local local = newLocal();
+        local.declaration = declaration;
+        local.conditional = conditional;
+        scopes.peek().put(name.lexeme, local);
+        return local.slot;
+    }
+
+    /* 'this' is always declared first, so it ends up in slot 0 */
+    private Local declareImplicit(String name){
+        Local local = newLocal();
+        local.defined = true;
+        scopes.peek().put(name, local);
+        return local;
+    }
+
+    private Local newLocal(){
+        Frame frame = frames.peek();
+        Local local = new Local(frame.next++, frames.size() - 1);
+        frame.size = Math.max(frame.size, frame.next);
+        return local;
     }
 
     private void define(Token name){
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().get(name.lexeme).defined = true;
     }
 
     private void resolve(Stmt stmt){
@@ -281,12 +564,35 @@ public class Resolver implements
         expr.accept(this);
     }
 
+    /* a scope with a frame of its own */
     private void beginScope(){
-        scopes.push(new HashMap<String, Boolean>());
-    }
-
-    private void endScope(){
-        scopes.pop();
+        scopes.push(new HashMap<String, Local>());
+        frames.push(new Frame());
+    }
+
+    private Collection<Local> endScope(){
+        frames.pop();
+        return popScope();
+    }
+
+    /*
+     * nothing in the scope can be captured after it ends, so this is
+     * where its uses and declarations learn which locals live in a Cell
+     */
+    private Collection<Local> popScope(){
+        Collection<Local> locals = scopes.pop().values();
+        for (Local local : locals){
+            if (!local.captured) continue;
+            for (Expr use : local.uses)
+                setCell(use);
+            if (local.declaration instanceof Stmt.Var)
+                ((Stmt.Var)local.declaration).captured = true;
+            else if (local.declaration instanceof Stmt.Function)
+                ((Stmt.Function)local.declaration).captured = true;
+            else if (local.declaration instanceof Stmt.Class)
+                ((Stmt.Class)local.declaration).captured = true;
+        }
+        return locals;
     }
 
-}
\ No newline at end of file
+}
\ No newline at end of file
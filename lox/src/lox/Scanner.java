@@ -2,53 +2,102 @@ package lox;
 
 import static lox.TokenType.*;
 import lox.Token;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.HashMap;
 
+/*
+ * Pull based: the Parser asks for one token at a time (nextToken()),
+ * the source is UTF-8 bytes in a ByteBuffer, for files that is the file
+ * mapped into memory (see forFile()) so the source is never copied onto
+ * the heap, only the lexemes of the tokens are.
+ *
+ * Everything outside of strings and comments is ASCII, so positions are
+ * byte offsets and only string literals need real UTF-8 decoding.
+ */
 public class Scanner{
     private int start, current, line;
-    private String source;
+    private final ByteBuffer source;
+    private final int length;
     private char curChar;
-    private List<Token> tokens = new ArrayList<>();
-    private static final HashMap<String, TokenType> keywords;
+    // lexemes get copied out of the buffer through this
+    private byte[] scratch = new byte[64];
+    private Token pending = null;
+    // the lexeme of every token that can only be spelled one way
+    private static final String[] fixedLexemes = new String[TokenType.values().length];
     static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("fn", FN);
-        keywords.put("for", FOR);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
+        String[][] fixed = {
+            {"and", "AND"}, {"class", "CLASS"}, {"else", "ELSE"}, {"false", "FALSE"},
+            {"fn", "FN"}, {"for", "FOR"}, {"if", "IF"}, {"nil", "NIL"}, {"or", "OR"},
+            {"print", "PRINT"}, {"return", "RETURN"}, {"super", "SUPER"}, {"this", "THIS"},
+            {"true", "TRUE"}, {"var", "VAR"}, {"while", "WHILE"},
+            {"(", "LEFT_PAREN"}, {")", "RIGHT_PAREN"}, {"{", "LEFT_BRACE"}, {"}", "RIGHT_BRACE"},
+            {"[", "LEFT_BRACKET"}, {"]", "RIGHT_BRACKET"},
+            {",", "COMMA"}, {".", "DOT"}, {"-", "MINUS"}, {"+", "PLUS"}, {";", "SEMI_COLON"},
+            {"/", "SLASH"}, {"*", "STAR"}, {"++", "PLUS_PLUS"}, {"--", "MINUS_MINUS"},
+            {"!", "EXCLAM"}, {"!=", "EXCLAM_EQUAL"}, {"=", "EQUAL"}, {"==", "EQUAL_EQUAL"},
+            {">", "GREATER"}, {">=", "GREATER_EQUAL"}, {"<", "LESS"}, {"<=", "LESS_EQUAL"}
+        };
+        for (String[] f : fixed)
+            fixedLexemes[TokenType.valueOf(f[1]).ordinal()] = f[0];
     }
 
     public Scanner(String source){
+        this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public Scanner(ByteBuffer source){
         this.source = source;
+        this.length = source.limit();
         start = current = 0;
         line = 1;
     }
 
-    List<Token> scanTokens(){
-        while (!isFinished()){
+    /*
+     * maps the whole file, the mapping stays valid after the channel
+     * is closed and the OS pages it in (and out) as the scanner goes
+     */
+    public static Scanner forFile(Path path) throws IOException {
+        return new Scanner(map(path));
+    }
+
+    public static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + " is too large (" + size + " bytes)");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /* the next token, null once the source is used up */
+    public Token nextToken(){
+        while (pending == null && !isFinished()){
             start = current;
             scanToken();
         }
 
+        Token token = pending;
+        pending = null;
+        return token;
+    }
+
+    /* all of them at once, for when the whole list is wanted anyway */
+    public List<Token> scanTokens(){
+        List<Token> tokens = new ArrayList<>();
+        for (Token token = nextToken(); token != null; token = nextToken())
+            tokens.add(token);
         return tokens;
     }
 
     Boolean isFinished(){
-        return current >= source.length();
+        return current >= length;
     }
 
     /* These consume */
@@ -60,18 +109,18 @@ public class Scanner{
     }
 
     void advance(){
-        curChar = source.charAt(current++);
+        curChar = (char)(source.get(current++) & 0xff);
     }
 
     /* These don't */
     char peek(){
         if (isFinished()) return '\0';
-        return source.charAt(current);
+        return (char)(source.get(current) & 0xff);
     }
 
     char peekNext(){
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (current + 1 >= length) return '\0';
+        return (char)(source.get(current + 1) & 0xff);
     }
 
 
@@ -82,6 +131,8 @@ public class Scanner{
             case ')': addToken(RIGHT_PAREN); break;
             case '{': addToken(LEFT_BRACE); break;
             case '}': addToken(RIGHT_BRACE); break;
+            case '[': addToken(LEFT_BRACKET); break;
+            case ']': addToken(RIGHT_BRACKET); break;
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case '-': 
@@ -129,23 +180,84 @@ public class Scanner{
                 else if (isAlpha(curChar))
                     alphaNumeric();
                 else 
-                    Lox.error(line, "Unexpected character: " + curChar);
+                    unexpected();
                 break;
         }
     }
 
+    /* reports the whole (possibly multi byte) character */
+    void unexpected(){
+        while (!isFinished() && (peek() & 0xc0) == 0x80) advance();
+        Lox.error(line, "Unexpected character: " + text(start, current, StandardCharsets.UTF_8));
+    }
+
+    /*
+     * nothing is allocated for a keyword or for an identifier that
+     * has been seen before, see SymbolTable
+     */
     void alphaNumeric(){
         while (isAlphaNumeric(peek())) advance();
 
-        String str = source.substring(start, current);
-
-        if (keywords.containsKey(str)){
-            addToken(keywords.get(str));
+        TokenType type = identifierType();
+        if (type != IDENTIFIER){
+            addToken(type);
             return;
         }
 
-        addToken(IDENTIFIER, 
-                 str);
+        Symbol symbol = SymbolTable.intern(source, start, current - start);
+        pending = new Token(IDENTIFIER, symbol.name, symbol.name, line, symbol);
+    }
+
+    /*
+     * keywords the way clox's identifierType() finds them: switch on the
+     * first (and where that is not enough the second) character, then
+     * compare what's left
+     */
+    TokenType identifierType(){
+        switch (byteAt(start)){
+            case 'a': return checkKeyword(1, "nd", AND);
+            case 'c': return checkKeyword(1, "lass", CLASS);
+            case 'e': return checkKeyword(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1){
+                    switch (byteAt(start + 1)){
+                        case 'a': return checkKeyword(2, "lse", FALSE);
+                        case 'n': return checkKeyword(2, "", FN);
+                        case 'o': return checkKeyword(2, "r", FOR);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword(1, "f", IF);
+            case 'n': return checkKeyword(1, "il", NIL);
+            case 'o': return checkKeyword(1, "r", OR);
+            case 'p': return checkKeyword(1, "rint", PRINT);
+            case 'r': return checkKeyword(1, "eturn", RETURN);
+            case 's': return checkKeyword(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1){
+                    switch (byteAt(start + 1)){
+                        case 'h': return checkKeyword(2, "is", THIS);
+                        case 'r': return checkKeyword(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword(1, "ar", VAR);
+            case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    TokenType checkKeyword(int offset, String rest, TokenType type){
+        if (current - start != offset + rest.length())
+            return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++)
+            if (byteAt(start + offset + i) != rest.charAt(i))
+                return IDENTIFIER;
+        return type;
+    }
+
+    char byteAt(int index){
+        return (char)(source.get(index) & 0xff);
     }
 
     void number(){
@@ -157,13 +269,8 @@ public class Scanner{
         while (isDigit(peek()))
             advance();
         
-        addToken(NUMBER, 
-                Double.parseDouble(
-                    source.substring(
-                        start,
-                        current
-                    )
-                ));
+        String lex = text(start, current, StandardCharsets.ISO_8859_1);
+        addToken(NUMBER, lex, Double.parseDouble(lex));
     }
 
     void string(){
@@ -179,8 +286,8 @@ public class Scanner{
 
         advance();
 
-        String literal = source.substring(start + 1, current - 1);
-        addToken(STRING, literal);
+        String literal = text(start + 1, current - 1, StandardCharsets.UTF_8);
+        addToken(STRING, "\"" + literal + "\"", literal);
     }
 
     Boolean isDigit(char c){
@@ -197,14 +304,20 @@ public class Scanner{
         return ( isAlpha(c) || isDigit(c) );
     }
 
+    private String text(int from, int to, Charset charset){
+        int len = to - from;
+        if (scratch.length < len)
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+        source.get(from, scratch, 0, len);
+        return new String(scratch, 0, len, charset);
+    }
+
     void addToken(TokenType t){
-        String lex = source.substring(start, current);
-        tokens.add(new Token(t, lex, null, line));
+        pending = new Token(t, fixedLexemes[t.ordinal()], null, line);
     }
 
-    void addToken(TokenType t, Object literal){
-        String lex = source.substring(start, current);
-        tokens.add(new Token(t, lex, literal, line));
+    void addToken(TokenType t, String lex, Object literal){
+        pending = new Token(t, lex, literal, line);
     }
 
-};
\ No newline at end of file
+};
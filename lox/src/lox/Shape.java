@@ -0,0 +1,54 @@
+package lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Hidden class of a LoxInstance
+ *
+ * A shape maps field names to indices into the instance's values array.
+ * Adding a field moves the instance along a transition to the next shape,
+ * transitions are shared, so every instance whose fields were added in
+ * the same order ends up with the very same Shape object.
+ *
+ * That makes 'same shape' a single reference compare, which is what the
+ * inline caches on Expr.Get / Expr.Set key on. Each LoxClass has its own
+ * root, so a shape also pins down the class (and with it the methods).
+ */
+final class Shape {
+    private final Map<Symbol, Integer> indices;
+    private Map<Symbol, Shape> transitions = null;
+
+    Shape(){
+        indices = new HashMap<>();
+    }
+
+    private Shape(Shape parent, Symbol name){
+        indices = new HashMap<>(parent.indices);
+        indices.put(name, parent.size());
+    }
+
+    int size(){
+        return indices.size();
+    }
+
+    int indexOf(Symbol name){
+        Integer index = indices.get(name);
+        return index == null ? -1 : index;
+    }
+
+    /*
+     * the shape an instance of this shape has after adding 'name'
+     */
+    Shape withField(Symbol name){
+        if (transitions == null)
+            transitions = new HashMap<>();
+
+        Shape next = transitions.get(name);
+        if (next == null){
+            next = new Shape(this, name);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
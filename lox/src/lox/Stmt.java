@@ -16,7 +16,10 @@ public abstract class Stmt{
 		R visitClassStmt(Class stmt);
 	}
 
-	abstract <R> R accept(Visitor<R> visitor);
+	public abstract <R> R accept(Visitor<R> visitor);
+
+	// not part of the syntax, filled in later on
+	public int line;
 
 	static public class Expression extends Stmt{
 		public Expression(Expr expression){
@@ -24,11 +27,11 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitExpressionStmt(this);
 		}
 
-		 final Expr expression;
+		public final Expr expression;
 	}
 
 	static public class Print extends Stmt{
@@ -37,11 +40,11 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitPrintStmt(this);
 		}
 
-		 final Expr expression;
+		public final Expr expression;
 	}
 
 	static public class Var extends Stmt{
@@ -51,12 +54,16 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitVarStmt(this);
 		}
 
-		 final Token identifier;
-		 final Expr expression;
+		public final Token identifier;
+		public final Expr expression;
+
+		// not part of the syntax, filled in later on
+		public int slot = -1;
+		public boolean captured;
 	}
 
 	static public class Block extends Stmt{
@@ -65,11 +72,16 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitBlockStmt(this);
 		}
 
-		 final List<Stmt> statements;
+		public final List<Stmt> statements;
+
+		// not part of the syntax, filled in later on
+		public int locals;
+		public boolean elided;
+		public int[] resets;
 	}
 
 	static public class If extends Stmt{
@@ -80,13 +92,13 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitIfStmt(this);
 		}
 
-		 final Expr condition;
-		 final Stmt thenBranch;
-		 final Stmt elseBranch;
+		public final Expr condition;
+		public final Stmt thenBranch;
+		public final Stmt elseBranch;
 	}
 
 	static public class While extends Stmt{
@@ -96,12 +108,12 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitWhileStmt(this);
 		}
 
-		 final Expr condition;
-		 final Stmt body;
+		public final Expr condition;
+		public final Stmt body;
 	}
 
 	static public class Function extends Stmt{
@@ -112,13 +124,20 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitFunctionStmt(this);
 		}
 
-		 final Token name;
-		 final List<Token> params;
-		 final List<Stmt> body;
+		public final Token name;
+		public final List<Token> params;
+		public final List<Stmt> body;
+
+		// not part of the syntax, filled in later on
+		public int slot = -1;
+		public int locals;
+		public boolean captured;
+		public int[] upvalues;
+		public int[] captures;
 	}
 
 	static public class Return extends Stmt{
@@ -128,12 +147,12 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitReturnStmt(this);
 		}
 
-		 final Token keyword;
-		 final Expr expression;
+		public final Token keyword;
+		public final Expr expression;
 	}
 
 	static public class Class extends Stmt{
@@ -144,13 +163,18 @@ public abstract class Stmt{
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor){
+		public <R> R accept(Visitor<R> visitor){
 			return visitor.visitClassStmt(this);
 		}
 
-		 final Token name;
-		 final Expr.Variable superclass;
-		 final List<Stmt.Function> methods;
+		public final Token name;
+		public final Expr.Variable superclass;
+		public final List<Stmt.Function> methods;
+
+		// not part of the syntax, filled in later on
+		public int slot = -1;
+		public boolean captured;
+		public int superSlot;
 	}
 
 }
@@ -0,0 +1,28 @@
+package lox;
+
+/*
+ * An interned name (see SymbolTable)
+ *
+ * There is exactly one Symbol per name, so two names are the same if
+ * they are the same object: equals() is Object's (identity) and the hash
+ * is computed once, when the name is first seen.
+ */
+public final class Symbol {
+    public final String name;
+    private final int hash;
+
+    Symbol(String name, int hash){
+        this.name = name;
+        this.hash = hash;
+    }
+
+    @Override
+    public int hashCode(){
+        return hash;
+    }
+
+    @Override
+    public String toString(){
+        return name;
+    }
+}
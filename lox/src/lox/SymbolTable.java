@@ -0,0 +1,105 @@
+package lox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Hands out the canonical Symbol for a name
+ *
+ * Open addressing with linear probing, like clox's table.c, keyed on the
+ * bytes of the name so the Scanner can look an identifier up straight
+ * from its source buffer: a name that has been seen before costs a hash
+ * and a compare, nothing gets allocated.
+ *
+ * Names are ASCII (that is all the Scanner lets into an identifier),
+ * names made up in code (intern(String)) have to be too.
+ *
+ * There is one table for the whole process, so symbols from different
+ * scans (every REPL line is one) are still the same objects.
+ */
+public final class SymbolTable {
+    private static final float MAX_LOAD = 0.75f;
+
+    private static Symbol[] entries = new Symbol[1024];
+    private static int count = 0;
+
+    private SymbolTable(){}
+
+    public static synchronized Symbol intern(ByteBuffer source, int start, int length){
+        int hash = hash(source, start, length);
+        int mask = entries.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask){
+            Symbol entry = entries[i];
+            if (entry == null)
+                return add(i, new Symbol(ascii(source, start, length), hash));
+            if (entry.hashCode() == hash && sameName(entry, source, start, length))
+                return entry;
+        }
+    }
+
+    public static synchronized Symbol intern(String name){
+        int hash = hash(name);
+        int mask = entries.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask){
+            Symbol entry = entries[i];
+            if (entry == null)
+                return add(i, new Symbol(name, hash));
+            if (entry.hashCode() == hash && entry.name.equals(name))
+                return entry;
+        }
+    }
+
+    private static Symbol add(int index, Symbol symbol){
+        entries[index] = symbol;
+        if (++count > entries.length * MAX_LOAD)
+            grow();
+        return symbol;
+    }
+
+    private static void grow(){
+        Symbol[] old = entries;
+        entries = new Symbol[old.length * 2];
+        int mask = entries.length - 1;
+        for (Symbol symbol : old){
+            if (symbol == null) continue;
+            int i = symbol.hashCode() & mask;
+            while (entries[i] != null)
+                i = (i + 1) & mask;
+            entries[i] = symbol;
+        }
+    }
+
+    private static boolean sameName(Symbol symbol, ByteBuffer source, int start, int length){
+        String name = symbol.name;
+        if (name.length() != length) return false;
+        for (int i = 0; i < length; i++)
+            if (name.charAt(i) != source.get(start + i))
+                return false;
+        return true;
+    }
+
+    private static String ascii(ByteBuffer source, int start, int length){
+        byte[] bytes = new byte[length];
+        source.get(start, bytes, 0, length);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /* FNV-1a, same as clox's hashString */
+    private static int hash(ByteBuffer source, int start, int length){
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < length; i++){
+            hash ^= source.get(start + i) & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    private static int hash(String name){
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++){
+            hash ^= name.charAt(i) & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+}
@@ -1,7 +1,7 @@
 package lox;
 
 
-class Token {
+public class Token {
     /* 
     Token type is GREATER for instance
     then lexeme is >
@@ -11,16 +11,23 @@ class Token {
     the lexeme is actually "the whole string"
     but the literal will be -the whole string-
     */
-    final TokenType type;
-    final String lexeme; 
-    final Object literal; 
-    final int line;
+    public final TokenType type;
+    public final String lexeme; 
+    public final Object literal; 
+    public final int line;
+    // the interned name, only set on IDENTIFIER tokens
+    public final Symbol symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line){
+        this(type, lexeme, literal, line, null);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, Symbol symbol){
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
     }
 
     @Override
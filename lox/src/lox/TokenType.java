@@ -1,7 +1,7 @@
 package lox;
 
-enum TokenType {
-    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE,
+public enum TokenType {
+    LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, LEFT_BRACKET, RIGHT_BRACKET,
     COMMA, DOT, MINUS, PLUS, SEMI_COLON, SLASH, STAR,
     PLUS_PLUS, MINUS_MINUS,
 
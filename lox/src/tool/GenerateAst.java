@@ -18,41 +18,79 @@ public class GenerateAst {
          * Storing paren token for Call
          * to report runtime errors (it's the closing parenthesis)
          * for function calls
+         *
+         * fields after '|' are not constructor params, they are
+         * mutable and get filled in later on by the Resolver.
+         * depth says where a name lives (see Resolver): -1 a global,
+         * 0 slot in the current frame, 1 the Cell in that slot (a local
+         * some closure captured), 2 the closure's upvalue number slot.
+         * Super finds 'this' the same way through thisDepth/thisSlot
+         *
+         * Binary.node is the specialized node the Interpreter rewrites
+         * the expression into the first time it runs (see BinaryNode),
+         * the Get/Set/Invoke fields are their inline caches (see LoxInstance)
+         *
+         * Invoke is obj.name(args), the parser builds it instead of Call(Get)
+         * so a method call does not have to create a bound method first
+         *
+         * Index is list[index], SetIndex list[index] = value (see LoxList),
+         * bracket is the closing ']' to report runtime errors on
+         *
+         * tail is set by the Resolver on calls that are a return's expression,
+         * inlined is the body of inlinedFrom with the arguments put in, what
+         * the call evaluates to as long as the callee is that function (see Inliner)
          */
         defineAst(outputDir, "Expr", Arrays.asList(
-       "Binary     : Expr left, Token operator, Expr right",
+       "Binary     : Expr left, Token operator, Expr right | BinaryNode node = BinaryNode.UNINITIALIZED",
             "Grouping   : Expr expression",
             "Literal    : Object value",
             "Unary      : Token operator, Expr right",
-            "Variable   : Token name",
-            "Assignment : Token identifier, Expr expression",
+            "Variable   : Token name | int depth = -1, int slot",
+            "Assignment : Token identifier, Expr expression | int depth = -1, int slot",
             "Logical    : Expr left, Token operator, Expr right",
-            "PostOp     : Token identifier, Token operator",
-            "PreOp      : Token identifier, Token operator",
-            "Call       : Expr callee, Token paren, List<Expr> arguments",
-            "Get        : Expr object, Token name",
-            "Set        : Expr object, Token name, Expr value",
-            "This       : Token keyword",
-            "Super      : Token keyword, Token method"
-          ));
+            "PostOp     : Token identifier, Token operator | int depth = -1, int slot",
+            "PreOp      : Token identifier, Token operator | int depth = -1, int slot",
+            "Call       : Expr callee, Token paren, List<Expr> arguments | boolean tail, Expr inlined, Stmt.Function inlinedFrom",
+            "Invoke     : Expr object, Token name, Token paren, List<Expr> arguments | Shape shape, int index, LoxFunction method, boolean tail",
+            "Get        : Expr object, Token name | Shape shape, int index, LoxFunction method",
+            "Set        : Expr object, Token name, Expr value | Shape shape, Shape next, int index",
+            "Index      : Expr object, Token bracket, Expr index",
+            "SetIndex   : Expr object, Token bracket, Expr index, Expr value",
+            "This       : Token keyword | int depth = -1, int slot",
+            "Super      : Token keyword, Token method | int depth = -1, int slot, int thisDepth = -1, int thisSlot"
+          ), null);
 
         /* 
          * TO DO: refactor if to allow elif
+         *
+         * slot is where a local declaration lives in its frame (-1 for globals),
+         * locals is how many slots a frame needs. An elided block has no frame,
+         * it runs in the enclosing one (see Resolver). captured is set on a
+         * local some closure uses, it lives in a Cell. A Function's upvalues
+         * are the cells its closure takes along (slot << 1 | 1 for a slot of
+         * the enclosing frame, index << 1 for one of the enclosing closure's
+         * upvalues), captures the slots (params, 'this') boxed on entry.
+         * Block.resets are the slots of declarations in if/while branches
+         * that have to start out nil (slot << 1 | 1 for a nil Cell)
+         *
+         * every statement knows the line it starts on (set by the Parser),
+         * that is what the profiler attributes its samples to
         */
         defineAst(outputDir, "Stmt", Arrays.asList(
             "Expression : Expr expression",
             "Print : Expr expression",
-            "Var : Token identifier, Expr expression",
-            "Block : List<Stmt> statements",
+            "Var : Token identifier, Expr expression | int slot = -1, boolean captured",
+            "Block : List<Stmt> statements | int locals, boolean elided, int[] resets",
             "If : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "While : Expr condition, Stmt body",
-            "Function : Token name, List<Token> params, List<Stmt> body",
+            "Function : Token name, List<Token> params, List<Stmt> body | int slot = -1, int locals, boolean captured, int[] upvalues, int[] captures",
             "Return : Token keyword, Expr expression",
-            "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods"
-        ));
+            "Class : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot = -1, boolean captured, int superSlot"
+        ), "int line");
     }
 
-    private static void defineAst(String outputDir, String absClass, List<String> subclasses) 
+    private static void defineAst(String outputDir, String absClass, List<String> subclasses,
+                                  String baseField)
     throws IOException
     {
         String path = outputDir + "/" + absClass + ".java";
@@ -67,15 +105,21 @@ public class GenerateAst {
 
             writer.println("public abstract class " + absClass + "{");
             defineVisitor(writer, absClass, subclasses);
-            writer.println("\tabstract <R> R accept(Visitor<R> visitor);");
+            writer.println("\tpublic abstract <R> R accept(Visitor<R> visitor);");
             writer.println("");
+            if (baseField != null){
+                writer.println("\t// not part of the syntax, filled in later on");
+                writer.println("\tpublic " + baseField + ";");
+                writer.println("");
+            }
             for (String clsData : subclasses){
                 String[] moreData = clsData.split(":");
                 String clsName = moreData[0].strip();
+                String[] fieldData = moreData[1].split("\\|");
                 writer.println("\tstatic public class " + clsName + " extends " + absClass + "{");
                 
                 writer.print("\t\tpublic " + clsName + "(");
-                String[] typesData = moreData[1].split(",");
+                String[] typesData = fieldData[0].split(",");
                 for (int i =0; i < typesData.length; i++){
                     String[] tData = typesData[i].strip().split(" ");
                     writer.print(tData[0] + " " + tData[1] + (i == typesData.length - 1 ? "" : ",") );
@@ -89,13 +133,21 @@ public class GenerateAst {
                 writer.println("\t\t}\n");
 
                 writer.println("\t\t@Override");
-                writer.println("\t\t<R> R accept(Visitor<R> visitor){");
+                writer.println("\t\tpublic <R> R accept(Visitor<R> visitor){");
                 writer.println("\t\t\treturn visitor.visit"+clsName+absClass+"(this);");
                 writer.println("\t\t}\n");
 
                 for (String typeData : typesData){
                     String[] tData = typeData.strip().split(" ");
-                    writer.println("\t\t final " + tData[0] + " " + tData[1] + ";");
+                    writer.println("\t\tpublic final " + tData[0] + " " + tData[1] + ";");
+                }
+
+                if (fieldData.length > 1){
+                    writer.println("");
+                    writer.println("\t\t// not part of the syntax, filled in later on");
+                    for (String typeData : fieldData[1].split(",")){
+                        writer.println("\t\tpublic " + typeData.strip() + ";");
+                    }
                 }
 
                 writer.println("\t}\n");
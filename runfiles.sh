@@ -3,21 +3,27 @@
 shopt -s expand_aliases
 source import_alias.sh
 
+# A script whose first line is "// expect: runtime error" has to stop
+# with one (exit code 70), any other has to succeed.
 # files=("simple.lox" "function.lox" "breakandfix.lox" "classes.lox")
 # for file in "${files[@]}"
 for file in *.lox; do
 
 	echo "Running file: $file"
+	expected=0
+	if [ "$(head -n 1 "$file")" == "// expect: runtime error" ]; then
+		expected=70
+	fi
+
     #java -cp lox/bin lox.Lox "$file"
 	jlox $file
 
 	errCode=$?
-    
-    if [ $errCode -ne 0 ]; then
+
+    if [ $errCode -ne $expected ]; then
         echo "Error: $file failed with exit code $errCode"
         exit 1
     fi
 done
 
 echo "All files executed successfully."
-